@@ -15,6 +15,14 @@ class Attribute(context: Context, attrs: AttributeSet?) {
     var messageMaxWidth: Int
     var dateSeparatorFontSize: Float
     var isOptionButtonEnable: Boolean
+    /**
+     * Number of rows inflated in advance for each common view type. 0 disables it.
+     */
+    var warmPoolSize: Int
+    /**
+     * Draw text message rows by one view instead of the layout files
+     */
+    var isFlatBubbleEnabled: Boolean
 
     init {
         val typedArray = context.obtainStyledAttributes(attrs, R.styleable.MessageView)
@@ -42,6 +50,14 @@ class Attribute(context: Context, attrs: AttributeSet?) {
                 R.styleable.MessageView_option_button_enable,
                 false
         )
+        this.warmPoolSize = typedArray.getInt(
+                R.styleable.MessageView_warm_pool_size,
+                0
+        )
+        this.isFlatBubbleEnabled = typedArray.getBoolean(
+                R.styleable.MessageView_flat_bubble_enable,
+                false
+        )
         typedArray.recycle()
     }
 }
\ No newline at end of file
@@ -0,0 +1,24 @@
+package com.github.bassaer.chatmessageview.model
+
+/**
+ * Date label row of the timeline.
+ * Rows of the same day are compared by epochDay, and the label is formatted
+ * by the date formatter of the first message only when it is shown.
+ * The message keeps the formatted label.
+ * @param epochDay days from 1970-01-01 in the time zone of the message
+ * @param message first message of the day. The timeline keeps it the first message
+ * while messages are added and removed, so that removed messages are not kept by the label.
+ */
+class DateSeparator internal constructor(val epochDay: Long, message: Message) {
+
+    internal var message = message
+
+    val text: String
+        get() = message.dateSeparateText
+
+    override fun equals(other: Any?): Boolean = other is DateSeparator && other.epochDay == epochDay
+
+    override fun hashCode(): Int = (epochDay xor epochDay.ushr(32)).toInt()
+
+    override fun toString(): String = text
+}
@@ -4,9 +4,12 @@ import android.graphics.Bitmap
 import android.graphics.drawable.Drawable
 import com.github.bassaer.chatmessageview.util.*
 import java.util.*
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Message object
+ * Boolean fields are packed into one int, and fields which most messages do not use
+ * are allocated only when they are set, to keep long histories small.
  * Created by nakayama on 2016/08/08.
  */
 class Message {
@@ -16,24 +19,58 @@ class Message {
      */
     lateinit var user: IChatUser
 
+    private var flags = FLAG_USERNAME_VISIBLE or FLAG_ICON_VISIBLE
+
+    /**
+     * Fields which most messages do not use
+     */
+    private var extras: Extras? = null
+
     /**
      * Whether sender username is shown or not
      */
-    var usernameVisibility = true
+    var usernameVisibility: Boolean
+        get() = hasFlag(FLAG_USERNAME_VISIBLE)
+        set(value) = setFlag(FLAG_USERNAME_VISIBLE, value)
     /**
      * If true, there is the icon space but invisible.
      */
-    var iconVisibility = true
+    var iconVisibility: Boolean
+        get() = hasFlag(FLAG_ICON_VISIBLE)
+        set(value) = setFlag(FLAG_ICON_VISIBLE, value)
     /**
      * If true, there is no icon space.
      */
-    var isIconHided = false
-        private set
+    var isIconHided: Boolean
+        get() = hasFlag(FLAG_ICON_HIDED)
+        private set(value) = setFlag(FLAG_ICON_HIDED, value)
+
+    /**
+     * Whether the row above is a message of the same sender.
+     * It is kept up to date by the timeline, and the username and icon are hidden if true.
+     */
+    var isSameSenderAsPrevious: Boolean
+        get() = hasFlag(FLAG_SAME_SENDER_AS_PREVIOUS)
+        internal set(value) = setFlag(FLAG_SAME_SENDER_AS_PREVIOUS, value)
+
+    /**
+     * Whether the username is shown in the row
+     */
+    val isUsernameShown: Boolean
+        get() = usernameVisibility && !isSameSenderAsPrevious
+
+    /**
+     * Whether the icon is shown in its space
+     */
+    val isIconShown: Boolean
+        get() = iconVisibility && !isSameSenderAsPrevious
 
     /**
      * Whether the message is shown right side or not.
      */
-    var isRightMessage: Boolean = false
+    var isRightMessage: Boolean
+        get() = hasFlag(FLAG_RIGHT_MESSAGE)
+        set(value) = setFlag(FLAG_RIGHT_MESSAGE, value)
 
     /**
      * Message content text
@@ -41,14 +78,52 @@ class Message {
     var messageText: String? = null
 
     /**
-     * The time message that was created
+     * The time message that was created in milliseconds
      */
-    var createdAt = Calendar.getInstance()
+    var createdAtMillis: Long = System.currentTimeMillis()
+        set(value) {
+            field = value
+            extras?.calendar = null
+            cachedEpochDay = NO_EPOCH_DAY
+            clearTimeLabels()
+        }
+
+    /**
+     * The time message that was created.
+     * The calendar is created from createdAtMillis when it is read for the first time.
+     * Set a calendar again after changing its time.
+     */
+    var createdAt: Calendar
+        get() {
+            val messageExtras = getExtras()
+            return messageExtras.calendar ?: Calendar.getInstance().also {
+                it.timeInMillis = createdAtMillis
+                messageExtras.calendar = it
+            }
+        }
+        set(value) {
+            createdAtMillis = value.timeInMillis
+        }
+
+    /**
+     * Order of arrival among the messages sent at the same time.
+     * It is assigned when the message is added to a timeline for the first time, 0 before that.
+     */
+    internal var sequence = 0L
+        private set
+
+    internal fun assignSequence() {
+        if (sequence == 0L) {
+            sequence = lastSequence.incrementAndGet()
+        }
+    }
 
     /**
      * Whether cell of list view is date separator text or not.
      */
-    var isDateCell: Boolean = false
+    var isDateCell: Boolean
+        get() = hasFlag(FLAG_DATE_CELL)
+        set(value) = setFlag(FLAG_DATE_CELL, value)
 
     /**
      * TEXT format of the send time that is next to the message
@@ -75,28 +150,176 @@ class Message {
     /**
      * Message status icon formatter
      */
-    var statusIconFormatter: IMessageStatusIconFormatter? = null
+    var statusIconFormatter: IMessageStatusIconFormatter?
+        get() = extras?.statusIconFormatter
+        set(value) {
+            if (value != null || extras != null) {
+                getExtras().statusIconFormatter = value
+            }
+        }
 
     /**
      * Message status text formatter
      */
-    var statusTextFormatter: IMessageStatusTextFormatter? = null
+    var statusTextFormatter: IMessageStatusTextFormatter?
+        get() = extras?.statusTextFormatter
+        set(value) {
+            if (value != null || extras != null) {
+                getExtras().statusTextFormatter = value
+            }
+        }
 
     /**
      * PICTURE message
      */
-    var picture: Bitmap? = null
+    var picture: Bitmap?
+        get() = extras?.picture
+        set(value) {
+            if (value != null || extras != null) {
+                getExtras().picture = value
+            }
+        }
 
     /**
      * Message type
      */
     var type: Type? = null
 
+    /**
+     * Stable id such as the id on the server.
+     * The timeline finds, updates and removes the message by it. Set it before the message is added.
+     */
+    var id: String?
+        get() = extras?.id
+        set(value) {
+            if (value != null || extras != null) {
+                getExtras().id = value
+            }
+        }
+
+    /**
+     * Custom message type.
+     * If the renderer of this type is registered, the message is shown by it.
+     */
+    var customType: String?
+        get() = extras?.customType
+        set(value) {
+            if (value != null || extras != null) {
+                getExtras().customType = value
+            }
+        }
+
+    /**
+     * Formatted labels are kept until the formatter, createdAt, the default locale or
+     * time zone is changed, or until the relative time text changes.
+     */
+    private var cachedTimeText: String? = null
+    private var timeTextExpiresAt = 0L
+    private var cachedDateText: String? = null
+    private var labelGeneration = -1
+
     val timeText: String
-        get() = mSendTimeFormatter!!.getFormattedTimeText(createdAt!!)
+        get() {
+            val formatter = mSendTimeFormatter!!
+            validateTimeLabels()
+            val now = if (formatter is IRelativeTimeFormatter) System.currentTimeMillis() else 0L
+            cachedTimeText?.let {
+                if (now < timeTextExpiresAt) {
+                    return it
+                }
+            }
+            val text: String
+            if (formatter is IRelativeTimeFormatter) {
+                text = formatter.getFormattedTimeText(createdAtMillis, now)
+                timeTextExpiresAt = formatter.getNextChangeTime(createdAtMillis, now)
+            } else {
+                text = formatTime(formatter)
+                // Custom formatters may return another text at any time
+                timeTextExpiresAt = if (formatter is DefaultTimeFormatter) Long.MAX_VALUE else 0L
+            }
+            cachedTimeText = text
+            return text
+        }
+
+    /**
+     * Return the time when timeText changes next
+     * @param now current time in milliseconds
+     * @return time in milliseconds, Long.MAX_VALUE if it never changes, null if it is unknown
+     */
+    internal fun getTimeTextChangeTime(now: Long): Long? {
+        val formatter = mSendTimeFormatter
+        return when (formatter) {
+            is IRelativeTimeFormatter -> formatter.getNextChangeTime(createdAtMillis, now)
+            is DefaultTimeFormatter -> Long.MAX_VALUE
+            else -> null
+        }
+    }
+
+    private var cachedEpochDay = NO_EPOCH_DAY
+
+    /**
+     * Days from 1970-01-01 of createdAt. It is computed again only when createdAt,
+     * the default locale or time zone is changed.
+     */
+    internal val epochDay: Long
+        get() {
+            validateTimeLabels()
+            if (cachedEpochDay == NO_EPOCH_DAY) {
+                cachedEpochDay = TimeUtils.getEpochDay(createdAtMillis)
+            }
+            return cachedEpochDay
+        }
 
     val dateSeparateText: String
-        get() = mDateFormatter!!.getFormattedTimeText(createdAt!!)
+        get() {
+            val formatter = mDateFormatter!!
+            validateTimeLabels()
+            cachedDateText?.let { return it }
+            val text = formatTime(formatter)
+            if (formatter is DateFormatter) {
+                cachedDateText = text
+            }
+            return text
+        }
+
+    /**
+     * Drop the labels and the day computed before the default locale or time zone was changed
+     */
+    private fun validateTimeLabels() {
+        val generation = TimeUtils.formatGeneration
+        if (labelGeneration != generation) {
+            clearTimeLabels()
+            cachedEpochDay = NO_EPOCH_DAY
+            labelGeneration = generation
+        }
+    }
+
+    private fun clearTimeLabels() {
+        cachedTimeText = null
+        timeTextExpiresAt = 0L
+        cachedDateText = null
+    }
+
+    /**
+     * Calendar is created only for the formatters which need it
+     */
+    private fun formatTime(formatter: ITimeFormatter): String {
+        return if (formatter is IMillisTimeFormatter) {
+            formatter.getFormattedTimeText(createdAtMillis)
+        } else {
+            formatter.getFormattedTimeText(createdAt)
+        }
+    }
+
+    /**
+     * Return whether both messages are sent by the same user
+     */
+    internal fun isSentBySameUser(other: Message): Boolean {
+        if (!this::user.isInitialized || !other::user.isInitialized) {
+            return false
+        }
+        return user === other.user || user.getId() == other.user.getId()
+    }
 
     val statusIcon: Drawable
         get() = statusIconFormatter!!.getStatusIcon(status, isRightMessage)
@@ -115,17 +338,64 @@ class Message {
         LINK
     }
 
+    /**
+     * Changed part of the message.
+     * Only the related views of the row are bound again.
+     */
+    enum class ChangeKind {
+        /**
+         * Message status icon or text
+         */
+        STATUS,
+        /**
+         * Message text
+         */
+        TEXT,
+        /**
+         * Picture of picture message
+         */
+        PICTURE,
+        /**
+         * Username and icon
+         */
+        USER,
+        /**
+         * Send time text
+         */
+        TIME,
+        /**
+         * Whole message
+         */
+        ALL
+    }
+
     /**
      * Constructor
      */
     init {
-        createdAt = Calendar.getInstance()
-        mSendTimeFormatter = DefaultTimeFormatter()
-        mDateFormatter = DateFormatter()
-        mSendTimeFormatter = DefaultTimeFormatter()
+        // Default formatters have no state, so all messages share them
+        mSendTimeFormatter = DEFAULT_TIME_FORMATTER
+        mDateFormatter = DEFAULT_DATE_FORMATTER
         type = Type.TEXT
     }
 
+    private fun hasFlag(flag: Int): Boolean = flags and flag != 0
+
+    private fun setFlag(flag: Int, value: Boolean) {
+        flags = if (value) flags or flag else flags and flag.inv()
+    }
+
+    private fun getExtras(): Extras = extras ?: Extras().also { extras = it }
+
+    private class Extras {
+        var calendar: Calendar? = null
+        var statusIconFormatter: IMessageStatusIconFormatter? = null
+        var statusTextFormatter: IMessageStatusTextFormatter? = null
+        var picture: Bitmap? = null
+        var customType: String? = null
+        var id: String? = null
+    }
+
     /**
      * Message builder
      */
@@ -168,6 +438,11 @@ class Message {
             return this
         }
 
+        fun setCreatedAt(millis: Long): Builder {
+            message.createdAtMillis = millis
+            return this
+        }
+
         fun setDateCell(isDateCell: Boolean): Builder {
             message.isDateCell = isDateCell
             return this
@@ -208,6 +483,16 @@ class Message {
             return this
         }
 
+        fun setId(id: String): Builder {
+            message.id = id
+            return this
+        }
+
+        fun setCustomType(customType: String): Builder {
+            message.customType = customType
+            return this
+        }
+
         fun setPicture(picture: Bitmap): Builder {
             message.picture = picture
             return this
@@ -229,6 +514,7 @@ class Message {
      */
     fun setSendTimeFormatter(sendTimeFormatter: ITimeFormatter) {
         mSendTimeFormatter = sendTimeFormatter
+        clearTimeLabels()
     }
 
     /**
@@ -237,6 +523,7 @@ class Message {
      */
     fun setDateFormatter(dateFormatter: ITimeFormatter) {
         mDateFormatter = dateFormatter
+        clearTimeLabels()
     }
 
     interface OnBubbleClickListener {
@@ -257,6 +544,20 @@ class Message {
 
     companion object {
 
+        private const val FLAG_USERNAME_VISIBLE = 1
+        private const val FLAG_ICON_VISIBLE = 1 shl 1
+        private const val FLAG_ICON_HIDED = 1 shl 2
+        private const val FLAG_SAME_SENDER_AS_PREVIOUS = 1 shl 3
+        private const val FLAG_RIGHT_MESSAGE = 1 shl 4
+        private const val FLAG_DATE_CELL = 1 shl 5
+
+        private const val NO_EPOCH_DAY = Long.MIN_VALUE
+
+        private val lastSequence = AtomicLong()
+
+        private val DEFAULT_TIME_FORMATTER = DefaultTimeFormatter()
+        private val DEFAULT_DATE_FORMATTER = DateFormatter()
+
         /**
          * Message status is not shown.
          */
@@ -0,0 +1,971 @@
+package com.github.bassaer.chatmessageview.model
+
+import android.support.v7.util.DiffUtil
+import android.support.v7.util.ListUpdateCallback
+import com.github.bassaer.chatmessageview.util.MessageDateComparator
+import com.github.bassaer.chatmessageview.util.TimeUtils
+import java.util.*
+
+/**
+ * Chat timeline model shared by the message list views.
+ * Keeps messages sorted by date with date separators between days,
+ * and reports each change as fine-grained list updates.
+ * Whether each message continues the messages of the same sender is also kept here,
+ * and only the rows next to the inserted or removed ones are checked again.
+ */
+class MessageTimeline {
+
+    /**
+     * Only messages
+     */
+    val messageList = ArrayList<Message>()
+
+    /**
+     * All contents such as right message, left message, date label
+     */
+    val chatList: MutableList<Any> = ArrayList()
+
+    private val comparator = MessageDateComparator()
+
+    /**
+     * Receives insert/remove/change notifications of chatList
+     */
+    var updateCallback: ListUpdateCallback? = null
+
+    /**
+     * Nesting depth of beginUpdate
+     */
+    private var updateDepth = 0
+    private val pendingAdds = ArrayList<Message>()
+    private val pendingRemoves = IdentityHashMap<Message, Boolean>()
+    private val pendingChanges = IdentityHashMap<Message, Message.ChangeKind>()
+    private var isRebuildPending = false
+
+    /**
+     * Messages which have id
+     */
+    private var idIndex = HashMap<String, Message>()
+
+    /**
+     * Changes made while messages are loaded, or null if no load is started
+     */
+    private var loadChanges: ArrayList<() -> Unit>? = null
+
+    /**
+     * Compares messages without assigning the arrival order.
+     * Messages which have no order yet are placed after the others in the order of the list,
+     * as if they were added one by one.
+     */
+    private val loadComparator = Comparator<Message> { lhs, rhs ->
+        val result = lhs.createdAtMillis.compareTo(rhs.createdAtMillis)
+        if (result != 0) result else loadSequenceOf(lhs).compareTo(loadSequenceOf(rhs))
+    }
+
+    /**
+     * True between beginUpdate and endUpdate
+     */
+    val isInUpdate: Boolean
+        get() = updateDepth > 0
+
+    /**
+     * Start collecting changes. They are applied at the last endUpdate
+     * with one sort and date label pass. Calls can be nested.
+     */
+    fun beginUpdate() {
+        updateDepth++
+    }
+
+    /**
+     * Apply the changes collected since the first beginUpdate
+     */
+    fun endUpdate() {
+        if (updateDepth == 0) {
+            return
+        }
+        updateDepth--
+        if (updateDepth == 0) {
+            applyPendingUpdates()
+        }
+    }
+
+    /**
+     * Replace all messages
+     * @param messages new messages
+     */
+    fun setMessages(messages: List<Message>) {
+        loadChanges = null
+        idIndex.clear()
+        messages.forEach { register(it) }
+        messageList.clear()
+        messageList.addAll(messages)
+        if (isInUpdate) {
+            clearPendingMessages()
+            isRebuildPending = true
+            return
+        }
+        rebuild()
+    }
+
+    /**
+     * Start loading messages prepared by prepare.
+     * Changes made to the timeline until publish are recorded, and applied again
+     * to the published messages, so messages added while loading are not lost.
+     * The load is cancelled by setMessages and clear.
+     */
+    fun startLoad() {
+        loadChanges = ArrayList()
+    }
+
+    /**
+     * Sort the messages and build the rows with date labels and sender grouping.
+     * Neither the timeline nor the messages are changed, so it can be called on a
+     * background thread while the messages are shown or changed on the main thread.
+     * The arrival order and the sender grouping are assigned by publish on the main thread,
+     * and the labels are formatted when their rows are shown.
+     * @param messages new messages. The list is not changed.
+     * @return rows to publish
+     */
+    fun prepare(messages: List<Message>): Prepared {
+        val sorted = ArrayList(messages)
+        // Messages loaded from a history are sorted in most cases
+        if (!isSorted(sorted, loadComparator)) {
+            Collections.sort(sorted, loadComparator)
+        }
+        val ids = HashMap<String, Message>()
+        val rows = ArrayList<Any>(sorted.size * 2)
+        val sameSender = BooleanArray(sorted.size * 2)
+        var prevEpochDay = 0L
+        for (i in sorted.indices) {
+            val message = sorted[i]
+            message.id?.let { ids.put(it, message) }
+            // Message.epochDay is not read since it caches the day
+            val epochDay = TimeUtils.getEpochDay(message.createdAtMillis)
+            if (i == 0 || epochDay != prevEpochDay) {
+                rows.add(DateSeparator(epochDay, message))
+            } else {
+                sameSender[rows.size] = sorted[i - 1].isSentBySameUser(message)
+            }
+            rows.add(message)
+            prevEpochDay = epochDay
+        }
+        return Prepared(sorted, rows, sameSender, ids)
+    }
+
+    /**
+     * Replace all messages with the prepared rows at once, and apply the changes
+     * recorded since startLoad again.
+     * The adapter is notified that all rows are removed and inserted.
+     * @param prepared result of prepare
+     * @return false if the load was cancelled and the rows are not shown
+     */
+    fun publish(prepared: Prepared): Boolean {
+        val changes = loadChanges ?: return false
+        loadChanges = null
+        // Collected changes are recorded, and applied to the new messages below
+        clearPendingMessages()
+        isRebuildPending = false
+        prepared.messages.forEach { it.assignSequence() }
+        for (i in prepared.rows.indices) {
+            (prepared.rows[i] as? Message)?.isSameSenderAsPrevious = prepared.sameSender[i]
+        }
+        idIndex = prepared.ids
+        messageList.clear()
+        messageList.addAll(prepared.messages)
+        val oldSize = chatList.size
+        chatList.clear()
+        chatList.addAll(prepared.rows)
+        if (oldSize > 0) {
+            updateCallback?.onRemoved(0, oldSize)
+        }
+        if (chatList.isNotEmpty()) {
+            updateCallback?.onInserted(0, chatList.size)
+        }
+        if (changes.isNotEmpty()) {
+            beginUpdate()
+            changes.forEach { it() }
+            endUpdate()
+        }
+        return true
+    }
+
+    /**
+     * Add message to the timeline.
+     * The position is found by binary search, and a date label is added only
+     * when the message is the first one of its day.
+     * @param message new message
+     */
+    fun add(message: Message) {
+        recordLoadChange { add(message) }
+        register(message)
+        if (isInUpdate) {
+            pendingAdds.add(message)
+            return
+        }
+        if (messageList.isEmpty() || comparator.compare(messageList[messageList.size - 1], message) <= 0) {
+            // Newest message arrives last in most cases
+            messageList.add(message)
+            insertIntoChatList(chatList.size, message)
+            return
+        }
+        messageList.add(upperBound(messageList, message), message)
+        insertIntoChatList(chatPositionOf(message), message)
+    }
+
+    /**
+     * Remove message from the timeline.
+     * The date label is removed as well if no message is left on that day.
+     * @param message message to remove
+     */
+    fun remove(message: Message) {
+        recordLoadChange { remove(message) }
+        unregister(message)
+        if (isInUpdate) {
+            val pendingIndex = pendingAdds.indexOfFirst { it === message }
+            if (pendingIndex >= 0) {
+                pendingAdds.removeAt(pendingIndex)
+            } else {
+                pendingRemoves.put(message, true)
+            }
+            pendingChanges.remove(message)
+            return
+        }
+        val messageIndex = indexOf(messageList, message)
+        if (messageIndex < 0) {
+            return
+        }
+        messageList.removeAt(messageIndex)
+        val position = indexOf(chatList, message)
+        if (position < 0) {
+            return
+        }
+        val hasDateLabel = position > 0 && chatList[position - 1] !is Message
+        val hasSameDayMessage = position + 1 < chatList.size && chatList[position + 1] is Message
+        if (hasDateLabel && !hasSameDayMessage) {
+            removeChatItems(position - 1, position + 1)
+        } else {
+            if (hasDateLabel) {
+                // The label is formatted by the next message of the day
+                (chatList[position - 1] as? DateSeparator)?.message = chatList[position + 1] as Message
+            }
+            removeChatItems(position, position + 1)
+        }
+    }
+
+    /**
+     * Add messages older than all messages in the timeline such as a page of history.
+     * They are inserted at once, and only the date label at the boundary is shared.
+     * Messages which are not older are merged into the timeline.
+     * @param messages older messages
+     */
+    fun addOlder(messages: List<Message>) {
+        recordLoadChange(messages) { addOlder(it) }
+        messages.forEach { register(it) }
+        if (isInUpdate) {
+            pendingAdds.addAll(messages)
+            return
+        }
+        val sorted = sortedCopy(messages) ?: return
+        if (messageList.isNotEmpty() && comparator.compare(sorted[sorted.size - 1], messageList[0]) > 0) {
+            merge(sorted)
+            return
+        }
+        val items = insertDateSeparator(sorted)
+        val isSameDay = messageList.isNotEmpty() && sorted[sorted.size - 1].epochDay == messageList[0].epochDay
+        messageList.addAll(0, sorted)
+        if (isSameDay) {
+            // Messages of the first day go below its existing date label
+            val labelIndex = items.indexOfLast { it !is Message }
+            (chatList[0] as? DateSeparator)?.message = items[labelIndex + 1] as Message
+            insertChatItems(1, items.subList(labelIndex + 1, items.size))
+            insertChatItems(0, items.subList(0, labelIndex))
+        } else {
+            insertChatItems(0, items)
+        }
+    }
+
+    /**
+     * Add messages newer than all messages in the timeline such as a page loaded again.
+     * Messages which are not newer are merged into the timeline.
+     * @param messages newer messages
+     */
+    fun addNewer(messages: List<Message>) {
+        recordLoadChange(messages) { addNewer(it) }
+        messages.forEach { register(it) }
+        if (isInUpdate) {
+            pendingAdds.addAll(messages)
+            return
+        }
+        val sorted = sortedCopy(messages) ?: return
+        if (messageList.isNotEmpty() && comparator.compare(sorted[0], messageList[messageList.size - 1]) < 0) {
+            merge(sorted)
+            return
+        }
+        append(sorted)
+    }
+
+    /**
+     * Merge messages sorted from oldest to newest into the timeline in one pass.
+     * Date labels are created only for days which are not shown yet, and each run of
+     * new rows is notified as one insert, so a page of older history on other days
+     * is inserted with one notification.
+     * The messages are sorted first if they are not in order.
+     * @param messages sorted messages
+     */
+    fun mergeSorted(messages: List<Message>) {
+        recordLoadChange(messages) { mergeSorted(it) }
+        messages.forEach { register(it) }
+        if (isInUpdate) {
+            pendingAdds.addAll(messages)
+            return
+        }
+        if (messages.isEmpty()) {
+            return
+        }
+        val sorted = if (isSorted(messages)) messages else sortedCopy(messages)!!
+        if (messageList.isEmpty() || comparator.compare(sorted[0], messageList[messageList.size - 1]) >= 0) {
+            append(sorted)
+        } else {
+            merge(sorted)
+        }
+    }
+
+    /**
+     * Remove the oldest messages and their date labels
+     * @param count number of messages to remove
+     */
+    fun removeOldest(count: Int) {
+        if (count <= 0) {
+            return
+        }
+        recordLoadChange(messageList.subList(0, Math.min(count, messageList.size))) { removed -> removed.forEach { remove(it) } }
+        if (isInUpdate) {
+            messageList.subList(0, Math.min(count, messageList.size)).forEach { remove(it) }
+            return
+        }
+        if (count >= messageList.size) {
+            removeAllMessages()
+            return
+        }
+        val lastRemoved = messageList[count - 1]
+        val firstKept = messageList[count]
+        val removed = messageList.subList(0, count)
+        removed.forEach { unregister(it) }
+        removed.clear()
+        val keptPosition = indexOf(chatList, firstKept)
+        if (lastRemoved.epochDay == firstKept.epochDay) {
+            // Keep the date label of the first kept day
+            var labelPosition = keptPosition - 1
+            while (chatList[labelPosition] is Message) {
+                labelPosition--
+            }
+            (chatList[labelPosition] as? DateSeparator)?.message = firstKept
+            removeChatItems(labelPosition + 1, keptPosition)
+            removeChatItems(0, labelPosition)
+        } else {
+            removeChatItems(0, keptPosition - 1)
+        }
+    }
+
+    /**
+     * Remove the newest messages and their date labels
+     * @param count number of messages to remove
+     */
+    fun removeNewest(count: Int) {
+        if (count <= 0) {
+            return
+        }
+        recordLoadChange(messageList.subList(Math.max(messageList.size - count, 0), messageList.size)) { removed ->
+            removed.forEach { remove(it) }
+        }
+        if (isInUpdate) {
+            messageList.subList(Math.max(messageList.size - count, 0), messageList.size).forEach { remove(it) }
+            return
+        }
+        if (count >= messageList.size) {
+            removeAllMessages()
+            return
+        }
+        val lastKept = messageList[messageList.size - count - 1]
+        val firstRemoved = messageList[messageList.size - count]
+        val removed = messageList.subList(messageList.size - count, messageList.size)
+        removed.forEach { unregister(it) }
+        removed.clear()
+        val removedPosition = indexOf(chatList, firstRemoved)
+        val hasOwnDateLabel = lastKept.epochDay != firstRemoved.epochDay
+        removeChatItems(if (hasOwnDateLabel) removedPosition - 1 else removedPosition, chatList.size)
+    }
+
+    /**
+     * Remove all messages matching the predicate at once.
+     * messageList and chatList are compacted in one pass, and only the rows next to
+     * the removed ones are checked again.
+     * @param predicate returns true for the message to remove
+     * @return number of removed messages
+     */
+    fun removeIf(predicate: (Message) -> Boolean): Int {
+        recordLoadChange { removeIf(predicate) }
+        if (isInUpdate) {
+            val targets = messageList.filter { !pendingRemoves.containsKey(it) && predicate(it) } + pendingAdds.filter(predicate)
+            targets.forEach { remove(it) }
+            return targets.size
+        }
+        return compact(predicate)
+    }
+
+    /**
+     * Remove the messages from fromIndex until toIndex of messageList at once
+     * @param fromIndex index of the first message to remove
+     * @param toIndex index after the last message to remove
+     * @return number of removed messages
+     */
+    fun removeRange(fromIndex: Int, toIndex: Int): Int {
+        val from = Math.max(fromIndex, 0)
+        val to = Math.min(toIndex, messageList.size)
+        if (from >= to) {
+            return 0
+        }
+        val targets = Collections.newSetFromMap(IdentityHashMap<Message, Boolean>())
+        targets.addAll(messageList.subList(from, to))
+        return removeIf { targets.contains(it) }
+    }
+
+    /**
+     * Remove the messages of the ids at once
+     * @param ids message ids
+     * @return number of removed messages
+     */
+    fun removeAll(ids: Collection<String>): Int {
+        // Messages which are loaded are not indexed yet
+        recordLoadChange(ids) { removeAll(it) }
+        val targets = Collections.newSetFromMap(IdentityHashMap<Message, Boolean>())
+        ids.mapNotNullTo(targets) { idIndex[it] }
+        if (targets.isEmpty()) {
+            return 0
+        }
+        return removeIf { targets.contains(it) }
+    }
+
+    /**
+     * Notify that the message was changed
+     * @param message changed message
+     * @param changeKind changed part, passed to the callback as payload
+     */
+    fun update(message: Message, changeKind: Message.ChangeKind) {
+        recordLoadChange { update(message, changeKind) }
+        if (isInUpdate) {
+            val pendingKind = pendingChanges[message]
+            pendingChanges.put(message, if (pendingKind == null || pendingKind == changeKind) changeKind else Message.ChangeKind.ALL)
+            return
+        }
+        val position = indexOf(chatList, message)
+        if (position >= 0) {
+            updateCallback?.onChanged(position, 1, if (changeKind == Message.ChangeKind.ALL) null else changeKind)
+        }
+    }
+
+    /**
+     * Return the message of the id
+     * @param id message id
+     * @return message, or null if no message has the id
+     */
+    fun findById(id: String): Message? = idIndex[id]
+
+    /**
+     * Notify that the message of the id was changed
+     * @param id message id
+     * @param changeKind changed part
+     * @return false if no message has the id
+     */
+    fun updateById(id: String, changeKind: Message.ChangeKind): Boolean {
+        recordLoadChange { updateById(id, changeKind) }
+        val message = idIndex[id] ?: return false
+        update(message, changeKind)
+        return true
+    }
+
+    /**
+     * Remove the message of the id
+     * @param id message id
+     * @return removed message, or null if no message has the id
+     */
+    fun removeById(id: String): Message? {
+        recordLoadChange { removeById(id) }
+        val message = idIndex[id] ?: return null
+        remove(message)
+        return message
+    }
+
+    /**
+     * Split the messages into days again after the default time zone was changed
+     */
+    fun refreshDays() {
+        if (isInUpdate) {
+            isRebuildPending = true
+            return
+        }
+        rebuild()
+    }
+
+    /**
+     * Remove all messages
+     */
+    fun clear() {
+        loadChanges = null
+        removeAllMessages()
+    }
+
+    /**
+     * Remove all messages without cancelling the load
+     */
+    private fun removeAllMessages() {
+        idIndex.clear()
+        messageList.clear()
+        if (isInUpdate) {
+            clearPendingMessages()
+            isRebuildPending = true
+            return
+        }
+        rebuild()
+    }
+
+    /**
+     * Apply collected changes. Removed rows are compacted in one pass, and new messages
+     * are appended, prepended or merged in one pass. The timeline is rebuilt only
+     * after setMessages or clear.
+     * Changed rows are notified after the inserted and removed rows.
+     */
+    private fun applyPendingUpdates() {
+        // Each collected change was recorded when it was made
+        val changesWhileLoading = loadChanges
+        loadChanges = null
+        try {
+            applyPendingMessages()
+        } finally {
+            loadChanges = changesWhileLoading
+        }
+    }
+
+    private fun applyPendingMessages() {
+        val adds = ArrayList(pendingAdds)
+        val removes = IdentityHashMap(pendingRemoves)
+        val changes = IdentityHashMap(pendingChanges)
+        val needsRebuild = isRebuildPending
+        clearPendingMessages()
+        isRebuildPending = false
+
+        Collections.sort(adds, comparator)
+        if (!needsRebuild && removes.isNotEmpty()) {
+            compact { removes.containsKey(it) }
+        }
+        when {
+            needsRebuild -> {
+                messageList.removeAll { removes.containsKey(it) }
+                messageList.addAll(adds)
+                rebuild()
+            }
+            adds.isEmpty() -> Unit
+            messageList.isEmpty() || comparator.compare(adds[0], messageList[messageList.size - 1]) >= 0 -> addNewer(adds)
+            comparator.compare(adds[adds.size - 1], messageList[0]) <= 0 -> addOlder(adds)
+            else -> merge(adds)
+        }
+        // New rows are bound with the latest values
+        adds.forEach { changes.remove(it) }
+        for ((message, changeKind) in changes) {
+            update(message, changeKind)
+        }
+    }
+
+    /**
+     * Remove messages from messageList and chatList in one pass.
+     * A date label is kept if a message of its day is kept, and each run of removed rows
+     * is reported as one remove from the top.
+     * @return number of removed messages
+     */
+    private fun compact(isRemoved: (Message) -> Boolean): Int {
+        // Decide from the bottom, so that each date label knows whether its day is left
+        val isKept = BooleanArray(chatList.size)
+        var hasKeptMessage = false
+        for (i in chatList.indices.reversed()) {
+            val item = chatList[i]
+            if (item is Message) {
+                isKept[i] = !isRemoved(item)
+                hasKeptMessage = hasKeptMessage || isKept[i]
+            } else {
+                isKept[i] = hasKeptMessage
+                hasKeptMessage = false
+            }
+        }
+        val result = ArrayList<Any>(chatList.size)
+        val keptMessages = ArrayList<Message>(messageList.size)
+        // Start and count of each run of removed rows in result
+        val runs = ArrayList<Int>()
+        // Kept label whose first kept message is not found yet
+        var label: DateSeparator? = null
+        for (i in chatList.indices) {
+            val item = chatList[i]
+            if (isKept[i]) {
+                result.add(item)
+                if (item is Message) {
+                    keptMessages.add(item)
+                    label?.message = item
+                    label = null
+                } else {
+                    label = item as? DateSeparator
+                }
+                continue
+            }
+            if (item is Message) {
+                unregister(item)
+            }
+            val lastIndex = runs.size - 2
+            if (lastIndex >= 0 && runs[lastIndex] == result.size) {
+                runs[lastIndex + 1]++
+            } else {
+                runs.add(result.size)
+                runs.add(1)
+            }
+        }
+        val removedCount = messageList.size - keptMessages.size
+        if (runs.isEmpty()) {
+            return removedCount
+        }
+        messageList.clear()
+        messageList.addAll(keptMessages)
+        chatList.clear()
+        chatList.addAll(result)
+        for (i in 0 until runs.size step 2) {
+            updateCallback?.onRemoved(runs[i], runs[i + 1])
+            notifySameSenderChanged(runs[i])
+        }
+        return removedCount
+    }
+
+    /**
+     * Add sorted messages which are not older than the last message
+     */
+    private fun append(sorted: List<Message>) {
+        val items = insertDateSeparator(sorted)
+        val isSameDay = messageList.isNotEmpty() && sorted[0].epochDay == messageList[messageList.size - 1].epochDay
+        messageList.addAll(sorted)
+        // The last day already has its date label
+        insertChatItems(chatList.size, if (isSameDay) items.subList(1, items.size) else items)
+    }
+
+    /**
+     * Merge sorted messages into messageList and chatList in O(n+m).
+     * Existing rows and date labels are kept, so the old chatList is a subsequence of the new one
+     * and the new rows are reported as runs of inserts from the top.
+     */
+    private fun merge(sorted: List<Message>) {
+        val merged = ArrayList<Message>(messageList.size + sorted.size)
+        val result = ArrayList<Any>(chatList.size + sorted.size * 2)
+        // Start and count of each run of new rows in result
+        val runs = ArrayList<Int>()
+        var oldIndex = 0
+        var newIndex = 0
+        var chatIndex = 0
+        var prevEpochDay = 0L
+        while (oldIndex < messageList.size || newIndex < sorted.size) {
+            val isNew = oldIndex == messageList.size ||
+                    (newIndex < sorted.size && comparator.compare(sorted[newIndex], messageList[oldIndex]) < 0)
+            val message = if (isNew) sorted[newIndex++] else messageList[oldIndex++]
+            val epochDay = message.epochDay
+            if (merged.isEmpty() || epochDay != prevEpochDay) {
+                val label = if (chatIndex < chatList.size) chatList[chatIndex] as? DateSeparator else null
+                if (label != null && label.epochDay == epochDay) {
+                    // The day is already shown
+                    label.message = message
+                    result.add(label)
+                    chatIndex++
+                } else {
+                    addNewRow(result, runs, DateSeparator(epochDay, message))
+                }
+            }
+            if (isNew) {
+                addNewRow(result, runs, message)
+            } else {
+                result.add(message)
+                chatIndex++
+            }
+            merged.add(message)
+            prevEpochDay = epochDay
+        }
+        messageList.clear()
+        messageList.addAll(merged)
+        chatList.clear()
+        chatList.addAll(result)
+        for (i in 0 until runs.size step 2) {
+            val start = runs[i]
+            val end = start + runs[i + 1]
+            for (position in start until end) {
+                updateSameSender(position)
+            }
+            updateCallback?.onInserted(start, end - start)
+            notifySameSenderChanged(end)
+        }
+    }
+
+    private fun addNewRow(result: MutableList<Any>, runs: MutableList<Int>, item: Any) {
+        val lastIndex = runs.size - 2
+        if (lastIndex >= 0 && runs[lastIndex] + runs[lastIndex + 1] == result.size) {
+            runs[lastIndex + 1]++
+        } else {
+            runs.add(result.size)
+            runs.add(1)
+        }
+        result.add(item)
+    }
+
+    private fun isSorted(messages: List<Message>, comparator: Comparator<Message> = this.comparator): Boolean =
+            (1 until messages.size).none { comparator.compare(messages[it - 1], messages[it]) > 0 }
+
+    private fun loadSequenceOf(message: Message): Long = if (message.sequence == 0L) Long.MAX_VALUE else message.sequence
+
+    private inline fun recordLoadChange(crossinline change: () -> Unit) {
+        loadChanges?.add { change() }
+    }
+
+    /**
+     * Record the change with a copy of the items, since the caller may change the list
+     */
+    private inline fun <T> recordLoadChange(items: Collection<T>, crossinline change: (List<T>) -> Unit) {
+        val changes = loadChanges ?: return
+        val copy = ArrayList(items)
+        changes.add { change(copy) }
+    }
+
+    /**
+     * Assign the arrival order, and index the message by its id.
+     * If messages have the same id, the last added one is found.
+     */
+    private fun register(message: Message) {
+        message.assignSequence()
+        message.id?.let { idIndex.put(it, message) }
+    }
+
+    private fun unregister(message: Message) {
+        val id = message.id ?: return
+        if (idIndex[id] === message) {
+            idIndex.remove(id)
+        }
+    }
+
+    private fun clearPendingMessages() {
+        pendingAdds.clear()
+        pendingRemoves.clear()
+        pendingChanges.clear()
+    }
+
+    private fun sortedCopy(messages: List<Message>): List<Message>? {
+        if (messages.isEmpty()) {
+            return null
+        }
+        val sorted = ArrayList(messages)
+        Collections.sort(sorted, comparator)
+        return sorted
+    }
+
+    private fun insertChatItems(position: Int, items: List<Any>) {
+        if (items.isEmpty()) {
+            return
+        }
+        chatList.addAll(position, items)
+        // Inserted rows are bound with the new values
+        for (i in position until position + items.size) {
+            updateSameSender(i)
+        }
+        updateCallback?.onInserted(position, items.size)
+        notifySameSenderChanged(position + items.size)
+    }
+
+    private fun removeChatItems(from: Int, to: Int) {
+        if (from >= to) {
+            return
+        }
+        chatList.subList(from, to).clear()
+        updateCallback?.onRemoved(from, to - from)
+        notifySameSenderChanged(from)
+    }
+
+    /**
+     * Update whether the message at the position follows the same sender
+     * @return true if it is changed
+     */
+    private fun updateSameSender(position: Int): Boolean {
+        val message = chatList[position] as? Message ?: return false
+        val isSameSender = isSentByPreviousSender(chatList, position)
+        if (message.isSameSenderAsPrevious == isSameSender) {
+            return false
+        }
+        message.isSameSenderAsPrevious = isSameSender
+        return true
+    }
+
+    private fun isSentByPreviousSender(items: List<Any>, position: Int): Boolean {
+        val prevItem = if (position > 0) items[position - 1] else null
+        return prevItem is Message && prevItem.isSentBySameUser(items[position] as Message)
+    }
+
+    /**
+     * Update the row below the changed rows, and notify it if its username and icon are changed
+     */
+    private fun notifySameSenderChanged(position: Int) {
+        if (position < chatList.size && updateSameSender(position)) {
+            updateCallback?.onChanged(position, 1, Message.ChangeKind.USER)
+        }
+    }
+
+    /**
+     * Sort messages, rebuild chatList and dispatch the difference from the previous one
+     */
+    private fun rebuild() {
+        val oldList = ArrayList(chatList)
+        Collections.sort(messageList, comparator)
+        chatList.clear()
+        chatList.addAll(insertDateSeparator(messageList))
+        val changedMessages = ArrayList<Message>()
+        for (i in chatList.indices) {
+            if (updateSameSender(i)) {
+                changedMessages.add(chatList[i] as Message)
+            }
+        }
+        updateCallback?.let {
+            DiffUtil.calculateDiff(ChatListDiffCallback(oldList, chatList), false).dispatchUpdatesTo(it)
+            // Rows which were already shown are bound again with the new username and icon
+            val oldMessages = Collections.newSetFromMap(IdentityHashMap<Any, Boolean>())
+            oldMessages.addAll(oldList)
+            changedMessages.filter { oldMessages.contains(it) }
+                    .forEach { message -> it.onChanged(indexOf(chatList, message), 1, Message.ChangeKind.USER) }
+        }
+    }
+
+    /**
+     * Insert message at the position of chatList
+     * @param position first position whose message is newer than the new message
+     * @param message new message
+     */
+    private fun insertIntoChatList(position: Int, message: Message) {
+        val prevMessage = if (position > 0) chatList[position - 1] as Message else null
+        if (prevMessage != null && prevMessage.epochDay == message.epochDay) {
+            insertChatItems(position, listOf(message))
+            return
+        }
+        // The next row is the date label of the next message if it exists
+        val nextMessage = if (position + 1 < chatList.size) chatList[position + 1] as? Message else null
+        if (nextMessage != null && chatList[position] !is Message
+                && nextMessage.epochDay == message.epochDay) {
+            // The message is the first one of the day now
+            (chatList[position] as? DateSeparator)?.message = message
+            insertChatItems(position + 1, listOf(message))
+            return
+        }
+        insertChatItems(position, listOf(DateSeparator(message.epochDay, message), message))
+    }
+
+    /**
+     * Return the first position of chatList whose message is newer than the message.
+     * A date label is compared as the message just below it.
+     */
+    private fun chatPositionOf(message: Message): Int {
+        var low = 0
+        var high = chatList.size
+        while (low < high) {
+            val mid = (low + high).ushr(1)
+            val item = chatList[mid] as? Message ?: chatList[mid + 1] as Message
+            if (comparator.compare(item, message) <= 0) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        return low
+    }
+
+    /**
+     * Return the first index of list whose message is newer than the message
+     */
+    private fun upperBound(list: List<Message>, message: Message): Int {
+        var low = 0
+        var high = list.size
+        while (low < high) {
+            val mid = (low + high).ushr(1)
+            if (comparator.compare(list[mid], message) <= 0) {
+                low = mid + 1
+            } else {
+                high = mid
+            }
+        }
+        return low
+    }
+
+    /**
+     * Find the message among the items sent at the same time, or by linear search
+     * if its created date was changed after it was added.
+     */
+    private fun indexOf(list: List<Any>, message: Message): Int {
+        var index = if (list === chatList) chatPositionOf(message) - 1 else upperBound(messageList, message) - 1
+        while (index >= 0) {
+            val item = list[index]
+            if (item === message) {
+                return index
+            }
+            if (item is Message && comparator.compare(item, message) != 0) {
+                break
+            }
+            index--
+        }
+        return list.indexOfFirst { it === message }
+    }
+
+    private fun insertDateSeparator(list: List<Message>): List<Any> {
+        val result = ArrayList<Any>()
+        if (list.isEmpty()) {
+            return result
+        }
+        var prevEpochDay = 0L
+        for (i in list.indices) {
+            val message = list[i]
+            val epochDay = message.epochDay
+            if (i == 0 || epochDay != prevEpochDay) {
+                result.add(DateSeparator(epochDay, message))
+            }
+            result.add(message)
+            prevEpochDay = epochDay
+        }
+        return result
+    }
+
+    /**
+     * Sorted messages and rows built by prepare
+     */
+    class Prepared internal constructor(
+            internal val messages: List<Message>,
+            internal val rows: List<Any>,
+            /**
+             * Whether the message of each row follows the same sender
+             */
+            internal val sameSender: BooleanArray,
+            internal val ids: HashMap<String, Message>
+    )
+
+    /**
+     * Messages are compared by identity, date labels by their day
+     */
+    private class ChatListDiffCallback(private val oldList: List<Any>, private val newList: List<Any>) : DiffUtil.Callback() {
+
+        override fun getOldListSize(): Int = oldList.size
+
+        override fun getNewListSize(): Int = newList.size
+
+        override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
+            val oldItem = oldList[oldItemPosition]
+            val newItem = newList[newItemPosition]
+            if (oldItem is Message || newItem is Message) {
+                return oldItem === newItem
+            }
+            return oldItem == newItem
+        }
+
+        override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean = true
+    }
+}
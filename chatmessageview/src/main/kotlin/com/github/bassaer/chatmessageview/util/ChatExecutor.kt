@@ -0,0 +1,43 @@
+package com.github.bassaer.chatmessageview.util
+
+import android.os.Handler
+import android.os.Looper
+import android.os.Process
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Runs work off the main thread and posts results back to it.
+ * All tasks share one low priority background thread.
+ */
+object ChatExecutor {
+
+    private val mainHandler by lazy { Handler(Looper.getMainLooper()) }
+
+    private val executor: ExecutorService by lazy {
+        Executors.newSingleThreadExecutor { runnable ->
+            val thread = Thread({
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+                runnable.run()
+            }, "ChatMessageView-background")
+            thread.isDaemon = true
+            thread
+        }
+    }
+
+    /**
+     * Run task on the background thread
+     * @param task background task
+     */
+    fun execute(task: () -> Unit) {
+        executor.execute { task() }
+    }
+
+    /**
+     * Run task on the main thread
+     * @param task main thread task
+     */
+    fun post(task: () -> Unit) {
+        mainHandler.post { task() }
+    }
+}
@@ -6,8 +6,12 @@ import java.util.*
  * Date formatter of chat timeline separator.
  * Created by nakayama on 2017/01/13.
  */
-class DateFormatter : ITimeFormatter {
+class DateFormatter : IMillisTimeFormatter {
     override fun getFormattedTimeText(createdAt: Calendar): String {
         return TimeUtils.calendarToString(createdAt, "MMM. dd, yyyy")
     }
+
+    override fun getFormattedTimeText(createdAt: Long): String {
+        return TimeUtils.millisToString(createdAt, "MMM. dd, yyyy")
+    }
 }
@@ -6,8 +6,12 @@ import java.util.*
  * Default Time format that show hour and minute
  * Created by nakayama on 2017/02/18.
  */
-class DefaultTimeFormatter : ITimeFormatter {
+class DefaultTimeFormatter : IMillisTimeFormatter {
     override fun getFormattedTimeText(createdAt: Calendar): String {
         return TimeUtils.calendarToString(createdAt, "HH:mm")
     }
+
+    override fun getFormattedTimeText(createdAt: Long): String {
+        return TimeUtils.millisToString(createdAt, "HH:mm")
+    }
 }
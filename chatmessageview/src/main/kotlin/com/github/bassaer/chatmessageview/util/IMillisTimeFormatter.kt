@@ -0,0 +1,15 @@
+package com.github.bassaer.chatmessageview.util
+
+/**
+ * Time formatter which formats the time in milliseconds.
+ * Messages call this instead of the Calendar version, so no Calendar is created for them.
+ */
+interface IMillisTimeFormatter : ITimeFormatter {
+
+    /**
+     * Format the time text which is next to the chat bubble.
+     * @param createdAt The time that message was created in milliseconds
+     * @return Formatted time text
+     */
+    fun getFormattedTimeText(createdAt: Long): String
+}
@@ -0,0 +1,24 @@
+package com.github.bassaer.chatmessageview.util
+
+/**
+ * Time formatter whose text depends on the current time such as "2 min ago".
+ * The chat view refreshes the send time labels only when the text of a visible message changes.
+ */
+interface IRelativeTimeFormatter : IMillisTimeFormatter {
+
+    /**
+     * Format the time text at the time
+     * @param createdAt The time that message was created in milliseconds
+     * @param now current time in milliseconds
+     * @return Formatted time text
+     */
+    fun getFormattedTimeText(createdAt: Long, now: Long): String
+
+    /**
+     * Return the time when the formatted text changes next
+     * @param createdAt The time that message was created in milliseconds
+     * @param now current time in milliseconds
+     * @return time in milliseconds after now, Long.MAX_VALUE if the text never changes
+     */
+    fun getNextChangeTime(createdAt: Long, now: Long): Long
+}
@@ -3,13 +3,13 @@ package com.github.bassaer.chatmessageview.util
 import com.github.bassaer.chatmessageview.model.Message
 import java.util.*
 
+/**
+ * Orders messages by created time, and by arrival among the messages sent at the same time.
+ * Both are compared as primitive longs.
+ */
 class MessageDateComparator : Comparator<Message> {
     override fun compare(first: Message, second: Message): Int {
-        if (first.createdAt.before(second.createdAt)) {
-            return -1
-        }
-        return if (first.createdAt.after(second.createdAt)) {
-            1
-        } else 0
+        val result = first.createdAtMillis.compareTo(second.createdAtMillis)
+        return if (result != 0) result else first.sequence.compareTo(second.sequence)
     }
 }
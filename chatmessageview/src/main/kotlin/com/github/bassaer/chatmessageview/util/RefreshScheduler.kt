@@ -0,0 +1,78 @@
+package com.github.bassaer.chatmessageview.util
+
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+
+/**
+ * Process-wide scheduler which refreshes the send time labels of the chat views.
+ * All clients share one callback on the main thread, and it is posted only while
+ * at least one client is scheduled.
+ * All methods must be called on the main thread.
+ */
+object RefreshScheduler {
+
+    /**
+     * Client refreshed by the scheduler
+     */
+    interface Client {
+        /**
+         * Called on the main thread at the scheduled time
+         */
+        fun onRefresh()
+    }
+
+    private class Entry(val client: Client, var nextTime: Long)
+
+    private val entries = ArrayList<Entry>()
+    private val handler by lazy { Handler(Looper.getMainLooper()) }
+    private val tick = Runnable { refresh() }
+
+    /**
+     * Refresh the client once at the time. If it is already scheduled, the time is replaced.
+     * The client schedules the next time in onRefresh if needed.
+     * @param client client to refresh
+     * @param uptimeMillis time based on SystemClock.uptimeMillis
+     */
+    fun scheduleAt(client: Client, uptimeMillis: Long) {
+        val entry = find(client)
+        if (entry != null) {
+            entry.nextTime = uptimeMillis
+        } else {
+            entries.add(Entry(client, uptimeMillis))
+        }
+        schedule()
+    }
+
+    /**
+     * Stop refreshing the client
+     * @param client client to stop
+     */
+    fun stop(client: Client) {
+        val entry = find(client) ?: return
+        entries.remove(entry)
+        schedule()
+    }
+
+    private fun find(client: Client): Entry? = entries.firstOrNull { it.client === client }
+
+    private fun refresh() {
+        val now = SystemClock.uptimeMillis()
+        // Copy because clients may schedule themselves again while refreshing
+        val dueEntries = entries.filter { it.nextTime <= now }
+        entries.removeAll(dueEntries)
+        for (entry in dueEntries) {
+            entry.client.onRefresh()
+        }
+        schedule()
+    }
+
+    /**
+     * Post the callback for the earliest client
+     */
+    private fun schedule() {
+        handler.removeCallbacks(tick)
+        val nextTime = entries.minBy { it.nextTime }?.nextTime ?: return
+        handler.postAtTime(tick, nextTime)
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.bassaer.chatmessageview.util
+
+import java.util.*
+
+/**
+ * Time format that shows elapsed time such as "just now", "5 min ago" and "yesterday".
+ * Older messages show the date.
+ * Override the text methods to localize the text.
+ */
+open class RelativeTimeFormatter : IRelativeTimeFormatter {
+
+    override fun getFormattedTimeText(createdAt: Calendar): String {
+        return getFormattedTimeText(createdAt.timeInMillis, System.currentTimeMillis())
+    }
+
+    override fun getFormattedTimeText(createdAt: Long): String {
+        return getFormattedTimeText(createdAt, System.currentTimeMillis())
+    }
+
+    override fun getFormattedTimeText(createdAt: Long, now: Long): String {
+        val elapsed = now - createdAt
+        return when {
+            elapsed < MINUTE -> getJustNowText()
+            elapsed < HOUR -> getMinutesAgoText((elapsed / MINUTE).toInt())
+            now < startOfDay(createdAt, 1) -> getHoursAgoText((elapsed / HOUR).toInt())
+            now < startOfDay(createdAt, 2) -> getYesterdayText()
+            else -> TimeUtils.millisToString(createdAt, "MMM. dd")
+        }
+    }
+
+    override fun getNextChangeTime(createdAt: Long, now: Long): Long {
+        val created = createdAt
+        val elapsed = now - created
+        return when {
+            elapsed < MINUTE -> created + MINUTE
+            elapsed < HOUR -> created + (elapsed / MINUTE + 1) * MINUTE
+            now < startOfDay(createdAt, 1) -> Math.min(created + (elapsed / HOUR + 1) * HOUR, startOfDay(createdAt, 1))
+            now < startOfDay(createdAt, 2) -> startOfDay(createdAt, 2)
+            else -> Long.MAX_VALUE
+        }
+    }
+
+    open fun getJustNowText(): String = "just now"
+
+    open fun getMinutesAgoText(minutes: Int): String = "$minutes min ago"
+
+    open fun getHoursAgoText(hours: Int): String = "$hours h ago"
+
+    open fun getYesterdayText(): String = "yesterday"
+
+    /**
+     * Return the start of the day after the days from the created day
+     */
+    private fun startOfDay(createdAt: Long, days: Int): Long {
+        val calendar = Calendar.getInstance()
+        calendar.timeInMillis = createdAt
+        calendar.set(Calendar.HOUR_OF_DAY, 0)
+        calendar.set(Calendar.MINUTE, 0)
+        calendar.set(Calendar.SECOND, 0)
+        calendar.set(Calendar.MILLISECOND, 0)
+        calendar.add(Calendar.DAY_OF_MONTH, days)
+        return calendar.timeInMillis
+    }
+
+    companion object {
+        private const val MINUTE = 60 * 1000L
+        private const val HOUR = 60 * MINUTE
+    }
+}
@@ -11,16 +11,86 @@ import java.util.*
  */
 object TimeUtils {
 
+    private const val MAX_CACHED_FORMATS = 16
+
+    /**
+     * Incremented when the default locale or time zone is changed.
+     * Labels formatted with an older value are formatted again.
+     */
+    @Volatile
+    var formatGeneration = 0
+        private set
+
+    private var lastLocale = Locale.getDefault()
+    private var lastTimeZoneId = TimeZone.getDefault().id
+
+    /**
+     * SimpleDateFormat is not thread safe, so each thread has its own formats.
+     * They are keyed by pattern, locale and time zone, so a new format is created
+     * after the default locale or time zone is changed.
+     */
+    private val dateFormats = object : ThreadLocal<HashMap<FormatKey, SimpleDateFormat>>() {
+        override fun initialValue() = HashMap<FormatKey, SimpleDateFormat>()
+    }
+
     /***
      * Return formatted text of calendar
      * @param calendar Calendar object to format
      * @param format format text
      * @return formatted text
      */
-    @SuppressLint("SimpleDateFormat")
     fun calendarToString(calendar: Calendar, format: String?): String {
-        val sdf = SimpleDateFormat( format ?: "HH:mm")
-        return sdf.format(calendar.time)
+        return getDateFormat(format ?: "HH:mm").format(calendar.time)
+    }
+
+    /***
+     * Return formatted text of the time in the default time zone
+     * @param millis time in milliseconds
+     * @param format format text
+     * @return formatted text
+     */
+    @JvmStatic
+    fun millisToString(millis: Long, format: String?): String {
+        return getDateFormat(format ?: "HH:mm").format(Date(millis))
+    }
+
+    /**
+     * Check the default locale and time zone, and increment formatGeneration if they are changed
+     * @return true if they are changed since the last check
+     */
+    @JvmStatic
+    @Synchronized
+    fun checkDefaultsChanged(): Boolean {
+        val locale = Locale.getDefault()
+        val timeZoneId = TimeZone.getDefault().id
+        if (locale == lastLocale && timeZoneId == lastTimeZoneId) {
+            return false
+        }
+        lastLocale = locale
+        lastTimeZoneId = timeZoneId
+        formatGeneration++
+        return true
+    }
+
+    /**
+     * Return the format of this thread for the default locale and time zone
+     * @param pattern format pattern
+     * @return cached format
+     */
+    @SuppressLint("SimpleDateFormat")
+    private fun getDateFormat(pattern: String): SimpleDateFormat {
+        val timeZone = TimeZone.getDefault()
+        val key = FormatKey(pattern, Locale.getDefault(), timeZone.id)
+        val formats = dateFormats.get()
+        formats[key]?.let { return it }
+        if (formats.size >= MAX_CACHED_FORMATS) {
+            // Formats of the old locale or time zone are not used any more
+            formats.clear()
+        }
+        val format = SimpleDateFormat(pattern, key.locale)
+        format.timeZone = timeZone
+        formats[key] = format
+        return format
     }
 
     /**
@@ -36,10 +106,29 @@ object TimeUtils {
         return (timeDiff / millisOfDay).toInt()
     }
 
+    /**
+     * Return days from 1970-01-01 in the default time zone
+     * @param millis time in milliseconds
+     * @return epoch day
+     */
+    @JvmStatic
+    fun getEpochDay(millis: Long): Long {
+        val localMillis = millis + TimeZone.getDefault().getOffset(millis)
+        // Round down for the dates before 1970
+        return if (localMillis >= 0) localMillis / MILLIS_OF_DAY else (localMillis + 1) / MILLIS_OF_DAY - 1
+    }
+
+    @JvmStatic
+    fun isSameDay(millis1: Long, millis2: Long): Boolean = getEpochDay(millis1) == getEpochDay(millis2)
+
     @JvmStatic
     fun isSameDay(cal1: Calendar, cal2: Calendar): Boolean {
         return cal1.get(Calendar.ERA) == cal2.get(Calendar.ERA) &&
                 cal1.get(Calendar.YEAR) == cal2.get(Calendar.YEAR) &&
                 cal1.get(Calendar.DAY_OF_YEAR) == cal2.get(Calendar.DAY_OF_YEAR)
     }
+
+    private const val MILLIS_OF_DAY = 1000L * 60 * 60 * 24
+
+    private data class FormatKey(val pattern: String, val locale: Locale, val timeZoneId: String)
 }
@@ -0,0 +1,41 @@
+package com.github.bassaer.chatmessageview.util
+
+import android.content.Context
+import android.graphics.drawable.Drawable
+import android.support.v4.content.ContextCompat
+import android.support.v4.graphics.drawable.DrawableCompat
+import android.util.LruCache
+
+/**
+ * Tinted drawables shared by the views of this library.
+ * Each resource and color is loaded and tinted only once, and a drawable sharing
+ * the tinted state is returned after that.
+ */
+object TintedDrawableCache {
+
+    private const val MAX_SIZE = 32
+
+    private val states = LruCache<Key, Drawable.ConstantState>(MAX_SIZE)
+
+    /**
+     * Return drawable of the resource tinted with the color
+     * @param context context
+     * @param resId drawable resource id
+     * @param color tint color
+     * @return tinted drawable, null if the resource is not found
+     */
+    fun get(context: Context, resId: Int, color: Int): Drawable? {
+        val resources = context.resources
+        val key = Key(resId, color, resources.displayMetrics.densityDpi)
+        states.get(key)?.let { return it.newDrawable(resources) }
+
+        val drawable = ContextCompat.getDrawable(context, resId) ?: return null
+        // Mutate not to tint the drawables of the same resource loaded by others
+        val tinted = DrawableCompat.wrap(drawable.mutate())
+        DrawableCompat.setTint(tinted, color)
+        tinted.constantState?.let { states.put(key, it) }
+        return tinted
+    }
+
+    private data class Key(val resId: Int, val color: Int, val densityDpi: Int)
+}
@@ -1,11 +1,9 @@
 package com.github.bassaer.chatmessageview.view
 
 import android.content.Context
-import android.content.res.ColorStateList
 import android.graphics.drawable.Drawable
 import android.os.Handler
 import android.support.v4.content.ContextCompat
-import android.support.v4.graphics.drawable.DrawableCompat
 import android.support.v4.widget.SwipeRefreshLayout
 import android.text.TextWatcher
 import android.util.AttributeSet
@@ -17,6 +15,7 @@ import android.widget.LinearLayout
 import com.github.bassaer.chatmessageview.R
 import com.github.bassaer.chatmessageview.model.Message
 import com.github.bassaer.chatmessageview.models.Attribute
+import com.github.bassaer.chatmessageview.util.TintedDrawableCache
 import kotlinx.android.synthetic.main.chat_view.view.*
 import kotlinx.android.synthetic.main.option_button.view.*
 
@@ -132,6 +131,143 @@ class ChatView : LinearLayout {
         }
     }
 
+    /**
+     * Replace the messages with the list sorted on the background thread.
+     * Messages sent or received until they are shown are kept.
+     * @param list messages to show
+     */
+    fun initAsync(list: List<Message>) {
+        messageView.initAsync(list)
+    }
+
+    /**
+     * Add a page of older history sorted from oldest to newest
+     * @param sortedPage older messages sorted by date
+     */
+    fun prependHistory(sortedPage: List<Message>) {
+        messageView.prependHistory(sortedPage)
+    }
+
+    /**
+     * Merge messages sorted from oldest to newest in one pass
+     * @param batch messages sorted by date
+     */
+    fun mergeSorted(batch: List<Message>) {
+        messageView.mergeSorted(batch)
+    }
+
+    /**
+     * Start collecting messages. Messages sent, received, removed and updated until
+     * endUpdate are applied with one sort, one refresh and one scroll.
+     * Changes made outside of beginUpdate and endUpdate are applied at the next frame.
+     */
+    fun beginUpdate() {
+        messageView.beginUpdate()
+    }
+
+    /**
+     * Apply the changes collected since beginUpdate
+     */
+    fun endUpdate() {
+        messageView.endUpdate()
+    }
+
+    /**
+     * Apply all changes in the block at once
+     */
+    inline fun batch(block: () -> Unit) {
+        beginUpdate()
+        try {
+            block()
+        } finally {
+            endUpdate()
+        }
+    }
+
+    /**
+     * Hold received messages for the time before they are shown,
+     * so that messages arriving a little out of order are shown in order.
+     * Sent messages are shown at once.
+     * @param millis time to hold each received message
+     */
+    fun setReorderWindow(millis: Long) {
+        messageView.setReorderWindow(millis)
+    }
+
+    /**
+     * Remove all messages matching the predicate with one refresh
+     * @param predicate returns true for the message to remove
+     */
+    fun removeIf(predicate: (Message) -> Boolean) {
+        messageView.removeIf(predicate)
+    }
+
+    /**
+     * Remove the messages from fromIndex until toIndex with one refresh
+     * @param fromIndex index of the first message to remove
+     * @param toIndex index after the last message to remove
+     */
+    fun removeRange(fromIndex: Int, toIndex: Int) {
+        messageView.removeRange(fromIndex, toIndex)
+    }
+
+    /**
+     * Remove the messages of the ids with one refresh
+     * @param ids message ids
+     */
+    fun removeAll(ids: Collection<String>) {
+        messageView.removeAll(ids)
+    }
+
+    /**
+     * Refresh only the changed part of the message such as status
+     * @param message changed message
+     * @param changeKind changed part
+     */
+    fun updateMessage(message: Message, changeKind: Message.ChangeKind) {
+        messageView.updateMessage(message, changeKind)
+    }
+
+    /**
+     * Return the message of the id
+     * @param id id set by Message.Builder.setId
+     * @return message, or null if no message has the id
+     */
+    fun findById(id: String): Message? = messageView.findById(id)
+
+    /**
+     * Refresh only the changed part of the message of the id
+     * @param id message id
+     * @param changeKind changed part
+     * @return false if no message has the id
+     */
+    fun updateById(id: String, changeKind: Message.ChangeKind): Boolean = messageView.updateById(id, changeKind)
+
+    /**
+     * Remove the message of the id
+     * @param id message id
+     * @return removed message, or null if no message has the id
+     */
+    fun removeById(id: String): Message? = messageView.removeById(id)
+
+    /**
+     * Set renderer of the message type
+     * @param type message type
+     * @param renderer renderer for the type
+     */
+    fun registerRenderer(type: Message.Type, renderer: MessageRenderer) {
+        messageView.registerRenderer(type, renderer)
+    }
+
+    /**
+     * Set renderer of the custom message type
+     * @param customType custom type set by Message.Builder.setCustomType
+     * @param renderer renderer for the custom type
+     */
+    fun registerRenderer(customType: String, renderer: MessageRenderer) {
+        messageView.registerRenderer(customType, renderer)
+    }
+
     fun setOnClickSendButtonListener(listener: View.OnClickListener) {
         sendButton.setOnClickListener(listener)
     }
@@ -155,12 +291,8 @@ class ChatView : LinearLayout {
             optionButton.setImageDrawable(getColoredDrawable(color, optionIconId))
     }
 
-    private fun getColoredDrawable(color: Int, iconId: Int): Drawable {
-        val colorStateList = ColorStateList.valueOf(color)
-        val icon = ContextCompat.getDrawable(context, iconId)
-        val wrappedDrawable = DrawableCompat.wrap(icon)
-        DrawableCompat.setTintList(wrappedDrawable, colorStateList)
-        return wrappedDrawable
+    private fun getColoredDrawable(color: Int, iconId: Int): Drawable? {
+        return TintedDrawableCache.get(context, iconId, color)
     }
 
     fun setSendIcon(resId: Int) {
@@ -277,6 +409,41 @@ class ChatView : LinearLayout {
         inputBox.maxLines = lines
     }
 
+    /**
+     * Load the history page by page from the source.
+     * Older pages are loaded when the user scrolls near the top, and at most
+     * maxMessages messages are kept in the view.
+     * @param source page source
+     * @param pageSize number of messages loaded at once
+     * @param prefetchDistance number of rows from the end to start loading
+     * @param maxMessages max number of messages kept in the view
+     */
+    @JvmOverloads
+    fun setPageSource(source: MessagePageSource,
+                      pageSize: Int = MessagePager.DEFAULT_PAGE_SIZE,
+                      prefetchDistance: Int = MessagePager.DEFAULT_PREFETCH_DISTANCE,
+                      maxMessages: Int = MessagePager.DEFAULT_MAX_MESSAGES) {
+        messageView.setPageSource(source, pageSize, prefetchDistance, maxMessages)
+    }
+
+    /**
+     * Inflate message rows on the background thread before they are shown.
+     * It can be also set by warm_pool_size attribute.
+     * @param rowsPerType number of rows for each common view type
+     */
+    fun setWarmPoolSize(rowsPerType: Int) {
+        messageView.setWarmPoolSize(rowsPerType)
+    }
+
+    /**
+     * Draw each text message row by one view.
+     * It can be also set by flat_bubble_enable attribute.
+     * @param enabled true to use flat rows
+     */
+    fun setFlatBubbleEnabled(enabled: Boolean) {
+        messageView.setFlatBubbleEnabled(enabled)
+    }
+
     fun setMessageFontSize(size: Float) {
         messageView.setMessageFontSize(size)
     }
@@ -0,0 +1,254 @@
+package com.github.bassaer.chatmessageview.view
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapShader
+import android.graphics.Canvas
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.PorterDuff
+import android.graphics.RectF
+import android.graphics.Shader
+import android.graphics.drawable.Drawable
+import android.support.v4.content.ContextCompat
+import android.text.StaticLayout
+import android.text.TextPaint
+import android.text.TextUtils
+import android.util.TypedValue
+import android.view.MotionEvent
+import android.view.View
+import com.github.bassaer.chatmessageview.R
+
+/**
+ * Text message row which measures and draws icon, username, bubble, text, status and
+ * send time by itself. It has the same look as message_view_left/right with a text bubble,
+ * but there is no child view to measure and lay out.
+ * The text layout is given from TextLayoutCache, so it is usually computed off the main thread.
+ */
+internal class FlatMessageView(context: Context, val isRightMessage: Boolean) : View(context) {
+
+    private val iconSize = resources.getDimensionPixelSize(R.dimen.icon_normal)
+    private val statusIconSize = resources.getDimensionPixelSize(R.dimen.icon_small)
+    private val iconMargin = resources.getDimensionPixelSize(R.dimen.spacing_tiny)
+    private val contentMargin = resources.getDimensionPixelSize(R.dimen.spacing_tiny)
+    private val bubblePadding = resources.getDimensionPixelSize(R.dimen.spacing_micro)
+    private val bubbleRadius = resources.getDimension(R.dimen.view_radius_normal)
+    private val timeMargin = resources.getDimensionPixelSize(
+            if (isRightMessage) R.dimen.spacing_micro else R.dimen.spacing_small)
+    private val lineSpacing = resources.getDimensionPixelSize(R.dimen.spacing_line)
+
+    private val bubblePaint = Paint(Paint.ANTI_ALIAS_FLAG)
+    private val iconPaint = Paint(Paint.ANTI_ALIAS_FLAG)
+    private val iconFillPaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+        color = ContextCompat.getColor(context, R.color.blueGray300)
+    }
+    val usernamePaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
+    val timePaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
+    val statusPaint = TextPaint(Paint.ANTI_ALIAS_FLAG).apply {
+        // Default text size of TextView
+        textSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 14f, resources.displayMetrics)
+    }
+    private val defaultIcon: Drawable? = ContextCompat.getDrawable(context, R.drawable.ic_action_user)
+    private val iconMatrix = Matrix()
+
+    var bubbleColor: Int
+        get() = bubblePaint.color
+        set(value) {
+            bubblePaint.color = value
+        }
+    var textColor = 0
+    var statusColor = 0
+
+    private var textLayout: StaticLayout? = null
+    private var username: CharSequence? = null
+    private var displayedUsername: CharSequence? = null
+    var timeText: String? = null
+        private set
+    private var statusText: String? = null
+    private var statusIcon: Drawable? = null
+    private var iconBitmap: Bitmap? = null
+    private var isIconShown = true
+    private var isIconSpaceShown = true
+
+    private val iconRect = RectF()
+    private val bubbleRect = RectF()
+    private var textWidth = 0
+    private var usernameHeight = 0
+    private var usernameBaseline = 0f
+    private var timeX = 0f
+    private var timeBaseline = 0f
+    private var statusX = 0f
+    private var statusTop = 0f
+
+    private var touchX = 0f
+    private var touchY = 0f
+
+    /**
+     * Set values to draw.
+     * @param textLayout layout of the message text
+     * @param username username, null if it is hidden
+     * @param timeText send time
+     * @param statusText status text, null if it is not shown
+     * @param statusIcon status icon, null if it is not shown
+     * @param icon user icon, null for default icon
+     * @param isIconShown whether the icon is drawn
+     * @param isIconSpaceShown whether the space for the icon is kept
+     */
+    fun setContent(textLayout: StaticLayout, username: CharSequence?, timeText: String?,
+                   statusText: String?, statusIcon: Drawable?, icon: Bitmap?,
+                   isIconShown: Boolean, isIconSpaceShown: Boolean) {
+        this.textLayout = textLayout
+        this.username = username
+        this.timeText = timeText
+        this.statusText = statusText
+        this.statusIcon = statusIcon?.mutate()
+        this.isIconShown = isIconShown
+        this.isIconSpaceShown = isIconSpaceShown
+        if (iconBitmap !== icon) {
+            iconBitmap = icon
+            iconPaint.shader = if (icon != null) BitmapShader(icon, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP) else null
+        }
+        var maxLineWidth = 0f
+        for (i in 0 until textLayout.lineCount) {
+            maxLineWidth = Math.max(maxLineWidth, textLayout.getLineWidth(i))
+        }
+        textWidth = Math.ceil(maxLineWidth.toDouble()).toInt()
+        contentDescription = textLayout.text
+        requestLayout()
+        invalidate()
+    }
+
+    /**
+     * Return whether the last touch was on the icon
+     */
+    fun isIconTouched() = isIconSpaceShown && isIconShown && iconRect.contains(touchX, touchY)
+
+    /**
+     * Return whether the last touch was on the bubble
+     */
+    fun isBubbleTouched() = bubbleRect.contains(touchX, touchY)
+
+    override fun onTouchEvent(event: MotionEvent): Boolean {
+        if (event.actionMasked == MotionEvent.ACTION_DOWN) {
+            touchX = event.x
+            touchY = event.y
+        }
+        return super.onTouchEvent(event)
+    }
+
+    override fun onMeasure(widthMeasureSpec: Int, heightMeasureSpec: Int) {
+        val width = MeasureSpec.getSize(widthMeasureSpec)
+        val layout = textLayout
+        if (layout == null) {
+            setMeasuredDimension(width, paddingTop + paddingBottom)
+            return
+        }
+        val iconSpace = if (isIconSpaceShown) iconMargin + iconSize else 0
+
+        // Username is one line and ellipsized like user_name_left/right
+        displayedUsername = username?.let {
+            TextUtils.ellipsize(it, usernamePaint, (width - iconSpace - contentMargin).toFloat(), TextUtils.TruncateAt.END)
+        }
+        usernameHeight = if (displayedUsername != null) lineSpacing * 2 + lineHeight(usernamePaint) else 0
+
+        val bubbleWidth = textWidth + bubblePadding * 2
+        val bubbleHeight = layout.height + bubblePadding * 2
+        val timeWidth = timeText?.let { timePaint.measureText(it) } ?: 0f
+        val status = statusText
+        val statusWidth = when {
+            statusIcon != null -> statusIconSize.toFloat()
+            status != null -> statusPaint.measureText(status)
+            else -> 0f
+        }
+        val statusHeight = when {
+            statusIcon != null -> statusIconSize
+            status != null -> lineHeight(statusPaint)
+            else -> 0
+        }
+        val sideHeight = statusHeight + lineHeight(timePaint) + lineSpacing
+        val contentHeight = usernameHeight + Math.max(bubbleHeight, sideHeight)
+        val innerHeight = Math.max(if (isIconSpaceShown) iconSize else 0, contentHeight)
+        setMeasuredDimension(width, paddingTop + innerHeight + paddingBottom)
+
+        // Content column is centered vertically next to the icon
+        val contentTop = paddingTop + (innerHeight - contentHeight) / 2f
+        val bubbleTop = contentTop + usernameHeight
+        val sideBottom = bubbleTop + Math.max(bubbleHeight, sideHeight) - lineSpacing
+        if (isRightMessage) {
+            val iconLeft = (width - iconMargin - iconSize).toFloat()
+            iconRect.set(iconLeft, paddingTop.toFloat(), iconLeft + iconSize, (paddingTop + iconSize).toFloat())
+            val bubbleRight = (width - iconSpace - contentMargin).toFloat()
+            bubbleRect.set(bubbleRight - bubbleWidth, bubbleTop, bubbleRight, bubbleTop + bubbleHeight)
+            val sideRight = bubbleRect.left - timeMargin
+            timeX = sideRight - timeWidth
+            statusX = sideRight - statusWidth
+        } else {
+            iconRect.set(iconMargin.toFloat(), paddingTop.toFloat(), (iconMargin + iconSize).toFloat(), (paddingTop + iconSize).toFloat())
+            val bubbleLeft = (iconSpace + contentMargin).toFloat()
+            bubbleRect.set(bubbleLeft, bubbleTop, bubbleLeft + bubbleWidth, bubbleTop + bubbleHeight)
+            val sideLeft = bubbleRect.right + timeMargin
+            timeX = sideLeft
+            statusX = sideLeft
+        }
+        usernameBaseline = contentTop + lineSpacing - usernamePaint.ascent()
+        timeBaseline = sideBottom - timePaint.descent()
+        statusTop = sideBottom - lineHeight(timePaint) - statusHeight
+    }
+
+    override fun onDraw(canvas: Canvas) {
+        val layout = textLayout ?: return
+
+        if (isIconSpaceShown && isIconShown) {
+            drawIcon(canvas)
+        }
+
+        displayedUsername?.let {
+            val usernameX = if (isRightMessage) bubbleRect.right - usernamePaint.measureText(it, 0, it.length) else bubbleRect.left
+            canvas.drawText(it, 0, it.length, usernameX, usernameBaseline, usernamePaint)
+        }
+
+        canvas.drawRoundRect(bubbleRect, bubbleRadius, bubbleRadius, bubblePaint)
+        canvas.save()
+        canvas.translate(bubbleRect.left + bubblePadding, bubbleRect.top + bubblePadding)
+        layout.paint.color = textColor
+        layout.draw(canvas)
+        canvas.restore()
+
+        val icon = statusIcon
+        if (icon != null) {
+            icon.setColorFilter(statusColor, PorterDuff.Mode.SRC_IN)
+            icon.setBounds(statusX.toInt(), statusTop.toInt(), statusX.toInt() + statusIconSize, statusTop.toInt() + statusIconSize)
+            icon.draw(canvas)
+        } else {
+            statusText?.let {
+                statusPaint.color = statusColor
+                canvas.drawText(it, statusX, statusTop - statusPaint.ascent(), statusPaint)
+            }
+        }
+
+        timeText?.let { canvas.drawText(it, timeX, timeBaseline, timePaint) }
+    }
+
+    private fun drawIcon(canvas: Canvas) {
+        val radius = iconSize / 2f
+        val bitmap = iconBitmap
+        if (bitmap != null) {
+            // Center crop like CircleImageView
+            val scale = Math.max(iconSize.toFloat() / bitmap.width, iconSize.toFloat() / bitmap.height)
+            iconMatrix.setScale(scale, scale)
+            iconMatrix.postTranslate(
+                    iconRect.left + (iconSize - bitmap.width * scale) / 2f,
+                    iconRect.top + (iconSize - bitmap.height * scale) / 2f)
+            iconPaint.shader.setLocalMatrix(iconMatrix)
+            canvas.drawCircle(iconRect.centerX(), iconRect.centerY(), radius, iconPaint)
+        } else {
+            canvas.drawCircle(iconRect.centerX(), iconRect.centerY(), radius, iconFillPaint)
+            defaultIcon?.let {
+                it.setBounds(iconRect.left.toInt(), iconRect.top.toInt(), iconRect.right.toInt(), iconRect.bottom.toInt())
+                it.draw(canvas)
+            }
+        }
+    }
+
+    private fun lineHeight(paint: Paint): Int = Math.ceil((paint.descent() - paint.ascent()).toDouble()).toInt()
+}
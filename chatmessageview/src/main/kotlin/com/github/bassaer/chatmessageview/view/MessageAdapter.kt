@@ -1,280 +1,129 @@
 package com.github.bassaer.chatmessageview.view
 
-import android.annotation.SuppressLint
 import android.content.Context
-import android.content.res.ColorStateList
-import android.graphics.Color
-import android.graphics.drawable.Drawable
-import android.support.v4.content.ContextCompat
-import android.support.v4.graphics.drawable.DrawableCompat
-import android.util.TypedValue
-import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
 import android.widget.ArrayAdapter
-import android.widget.FrameLayout
-import android.widget.ImageView
-import android.widget.TextView
-import com.github.bassaer.chatmessageview.R
 import com.github.bassaer.chatmessageview.model.Message
 import com.github.bassaer.chatmessageview.models.Attribute
-import de.hdodenhof.circleimageview.CircleImageView
-import kotlinx.android.synthetic.main.date_cell.view.*
-import java.util.*
 
 
 /**
  * Custom list adapter for the chat timeline
  * Created by nakayama on 2016/08/08.
  */
-class MessageAdapter(context: Context, resource: Int, private val objects: List<Any>, private var attribute: Attribute) : ArrayAdapter<Any>(context, resource, objects) {
-
-    private val viewTypes = ArrayList<Any>()
-    private var layoutInflater = LayoutInflater.from(context)
-    private lateinit var iconClickListener: Message.OnIconClickListener
-    private lateinit var bubbleClickListener: Message.OnBubbleClickListener
-    private lateinit var iconLongClickListener: Message.OnIconLongClickListener
-    private lateinit var bubbleLongClickListener: Message.OnBubbleLongClickListener
-
-    private var usernameTextColor = ContextCompat.getColor(getContext(), R.color.blueGray500)
-    private var sendTimeTextColor = ContextCompat.getColor(getContext(), R.color.blueGray500)
-    private var dateLabelColor = ContextCompat.getColor(getContext(), R.color.blueGray500)
-    private var rightMessageTextColor = Color.WHITE
-    private var leftMessageTextColor = Color.BLACK
-    private var leftBubbleColor: Int = 0
-    private var rightBubbleColor: Int = 0
-    private var statusColor = ContextCompat.getColor(getContext(), R.color.blueGray500)
-    /**
-     * Default message item margin top
-     */
-    private var messageTopMargin = 5
-    /**
-     * Default message item margin bottom
-     */
-    private var messageBottomMargin = 5
+class MessageAdapter(context: Context, resource: Int, private val objects: List<Any>, attribute: Attribute) : ArrayAdapter<Any>(context, resource, objects) {
 
-    init {
-        viewTypes.add(String::class.java)
-        viewTypes.add(Message::class.java)
-        leftBubbleColor = ContextCompat.getColor(context, R.color.default_left_bubble_color)
-        rightBubbleColor = ContextCompat.getColor(context, R.color.default_right_bubble_color)
-    }
+    private val binder = MessageViewBinder(context, attribute)
+    private val warmViewPool = WarmViewPool(binder)
 
     override fun getItemViewType(position: Int): Int {
-        val item = objects[position]
-        return viewTypes.indexOf(item)
+        return binder.getItemViewType(objects[position])
     }
 
+    override fun hasStableIds(): Boolean = true
+
+    override fun getItemId(position: Int): Long = binder.getItemId(objects[position])
+
     override fun getViewTypeCount(): Int {
-        return viewTypes.size
+        return binder.viewTypeCount
     }
 
-    @SuppressLint("InflateParams")
     override fun getView(position: Int, convertView: View?, parent: ViewGroup?): View {
         val item = getItem(position)
-        var view = convertView
-
-        if (item is String) {
-            // item is Date label
-            lateinit var dateViewHolder: DateViewHolder
-            view?.let {
-                dateViewHolder = it.tag as DateViewHolder
-            } ?: let {
-                view = layoutInflater.inflate(R.layout.date_cell, null)
-                dateViewHolder = DateViewHolder()
-                dateViewHolder.dateLabelText = view?.dateLabelText
-                view?.tag = dateViewHolder
-            }
-
-            dateViewHolder.dateLabelText?.text = item
-            dateViewHolder.dateLabelText?.setTextColor(dateLabelColor)
-            dateViewHolder.dateLabelText?.setTextSize(TypedValue.COMPLEX_UNIT_PX, attribute.dateSeparatorFontSize)
+        val viewType = getItemViewType(position)
+        val view = convertView ?: warmViewPool.take(viewType) ?: binder.createView(null, viewType)
 
+        if (item is Message) {
+            binder.bindMessageView(view, item)
         } else {
-            //Item is a message
-            lateinit var messageViewHolder: MessageViewHolder
-            val message: Message = item as Message
-            if (position > 0) {
-                getItem(position - 1).let {
-                    if (it is Message && it.user.getId() == message.user.getId()) {
-                        //If send same person, hide username and icon.
-                        message.iconVisibility = false
-                        message.usernameVisibility = false
-                    }
-                }
-            }
-
-            val user = message.user
-
-            view?.let {
-                messageViewHolder = it.tag as MessageViewHolder
-            } ?: run {
-                view = layoutInflater
-                        .inflate(if (message.isRightMessage) R.layout.message_view_right else R.layout.message_view_left,
-                                null)
-                messageViewHolder = MessageViewHolder()
-                messageViewHolder.iconContainer = view?.findViewById(R.id.userIconContainer)
-                messageViewHolder.mainMessageContainer = view?.findViewById(R.id.mainMessageContainer)
-                messageViewHolder.timeText = view?.findViewById(R.id.timeLabelText)
-                messageViewHolder.usernameContainer = view?.findViewById(R.id.usernameContainer)
-                messageViewHolder.statusContainer = view?.findViewById(R.id.statusContainer)
-                view?.tag = messageViewHolder
-            }
-
-            //Remove view in each container
-            messageViewHolder.iconContainer?.removeAllViews()
-            messageViewHolder.usernameContainer?.removeAllViews()
-            messageViewHolder.statusContainer?.removeAllViews()
-            messageViewHolder.mainMessageContainer?.removeAllViews()
-
-            if (user.getName() != null && message.usernameVisibility) {
-                layoutInflater.inflate(
-                        if (message.isRightMessage) R.layout.user_name_right else R.layout.user_name_left,
-                        messageViewHolder.usernameContainer).let {
-                    messageViewHolder.username = it.findViewById(R.id.message_user_name)
-                    messageViewHolder.username?.text = user.getName()
-                    messageViewHolder.username?.setTextColor(usernameTextColor)
-                    messageViewHolder.username?.setTextSize(TypedValue.COMPLEX_UNIT_PX, attribute.usernameFontSize)
-                }
-
-            }
-
-            // if false, icon is not shown.
-            if (!message.isIconHided) {
-                layoutInflater.inflate(if (message.isRightMessage) R.layout.user_icon_right else R.layout.user_icon_left,
-                        messageViewHolder.iconContainer).let {
-                    messageViewHolder.icon = it.findViewById(R.id.user_icon)
-                }
-
-                if (message.iconVisibility) {
-                    //if false, set default icon.
-                    if (user.getIcon() != null) {
-                        messageViewHolder.icon?.setImageBitmap(user.getIcon())
-                    }
-
-                } else {
-                    //Show nothing
-                    messageViewHolder.icon?.visibility = View.INVISIBLE
-                }
-            }
-
-
-            //Show message status
-            if (message.messageStatusType == Message.MESSAGE_STATUS_ICON || message.messageStatusType == Message.MESSAGE_STATUS_ICON_RIGHT_ONLY) {
-                //Show message status icon
-                layoutInflater.inflate(R.layout.message_status_icon, messageViewHolder.statusContainer).let {
-                    messageViewHolder.statusIcon = it.findViewById(R.id.status_icon_image_view)
-                    messageViewHolder.statusIcon?.setImageDrawable(message.statusIcon)
-                    setColorDrawable(statusColor, messageViewHolder.statusIcon?.drawable)
-                }
-
-            } else if (message.messageStatusType == Message.MESSAGE_STATUS_TEXT || message.messageStatusType == Message.MESSAGE_STATUS_TEXT_RIGHT_ONLY) {
-                //Show message status text
-                layoutInflater.inflate(R.layout.message_status_text, messageViewHolder.statusContainer).let {
-                    messageViewHolder.statusText = it.findViewById(R.id.status_text_view)
-                    messageViewHolder.statusText?.text = message.statusText
-                    messageViewHolder.statusText?.setTextColor(statusColor)
-                }
-            }
-
-            //Set text or picture on message bubble
-            when (message.type) {
-                Message.Type.PICTURE -> {
-                    //Set picture
-                    layoutInflater.inflate(
-                            if (message.isRightMessage) R.layout.message_picture_right else R.layout.message_picture_left,
-                            messageViewHolder.mainMessageContainer).let {
-                        messageViewHolder.messagePicture = it.findViewById(R.id.message_picture)
-                        messageViewHolder.messagePicture?.setImageBitmap(message.picture)
-                    }
-
-                }
-                Message.Type.LINK -> {
-                    //Set text
-                    layoutInflater.inflate(
-                            if (message.isRightMessage) R.layout.message_link_right else R.layout.message_link_left,
-                            messageViewHolder.mainMessageContainer).let {
-                        messageViewHolder.messageLink = it.findViewById(R.id.message_link)
-                        messageViewHolder.messageLink?.text = message.messageText
-                        //Set bubble color
-                        setColorDrawable(
-                                if (message.isRightMessage) rightBubbleColor else leftBubbleColor,
-                                messageViewHolder.messageLink?.background
-                        )
-                        //Set message text color
-                        messageViewHolder.messageLink?.setTextColor(
-                                if (message.isRightMessage) rightMessageTextColor else leftMessageTextColor
-                        )
-                    }
-
-                } else -> {
-                    layoutInflater.inflate(
-                            if (message.isRightMessage) R.layout.message_text_right else R.layout.message_text_left,
-                            messageViewHolder.mainMessageContainer).let {
-                        messageViewHolder.messageText = it.findViewById(R.id.message_text)
-                        messageViewHolder.messageText?.text = message.messageText
-                        setColorDrawable(
-                                if (message.isRightMessage) rightBubbleColor else leftBubbleColor,
-                                messageViewHolder.messageText?.background
-                        )
-                        messageViewHolder.messageText?.setTextColor(
-                                if (message.isRightMessage) rightMessageTextColor else leftMessageTextColor
-                        )
-                    }
-                }
-            }
-
-            messageViewHolder.timeText?.text = message.timeText
-
-            messageViewHolder.timeText?.setTextColor(sendTimeTextColor)
-
-            //Set Padding
-            view?.setPadding(0, messageTopMargin, 0, messageBottomMargin)
-
-            if (messageViewHolder.mainMessageContainer != null) {
-                //Set bubble click listener
-                messageViewHolder.mainMessageContainer?.setOnClickListener { bubbleClickListener.onClick(message) }
-
-
-                //Set bubble long click listener
-                messageViewHolder.mainMessageContainer?.setOnLongClickListener {
-                    bubbleLongClickListener.onLongClick(message)
-                    true//ignore onclick event
-                }
-            }
-
-            //Set icon events if icon is shown
-            if (message.iconVisibility && messageViewHolder.icon != null) {
-                //Set icon click listener
-                messageViewHolder.icon?.setOnClickListener { iconClickListener.onIconClick(message) }
-
-                messageViewHolder.icon?.setOnLongClickListener {
-                    iconLongClickListener.onIconLongClick(message)
-                    true
-                }
-
-            }
-
-            messageViewHolder.messageText?.setTextSize(TypedValue.COMPLEX_UNIT_PX, attribute.messageFontSize)
-            messageViewHolder.messageText?.maxWidth = attribute.messageMaxWidth
-            messageViewHolder.timeText?.setTextSize(TypedValue.COMPLEX_UNIT_PX, attribute.timeLabelFontSize)
+            // item is Date label
+            binder.bindDateView(view, item)
         }
+        return view
+    }
 
-        return view!!
+    /**
+     * Inflate rows of the common view types on the background thread.
+     * The rows are used instead of inflating new ones when the list needs them.
+     * @param rowsPerType number of rows for each view type
+     */
+    fun prefillViews(rowsPerType: Int) {
+        warmViewPool.prefill(binder.getCommonViewTypes(), rowsPerType)
+    }
+
+    /**
+     * Drop the rows inflated in advance
+     */
+    fun clearPrefilledViews() {
+        warmViewPool.clear()
     }
 
     /**
-     * Add color to drawable
-     * @param color setting color
-     * @param drawable which be set color
+     * Bind the changed part of the item again to the row which is already shown
+     * @param view row of the item
+     * @param position item position
+     * @param changeKind changed part, null if the whole item was changed
+     * @param parent list view
      */
-    private fun setColorDrawable(color: Int, drawable: Drawable?) {
-        if (drawable == null) {
+    fun rebindView(view: View, position: Int, changeKind: Message.ChangeKind?, parent: ViewGroup) {
+        val item = getItem(position)
+        if (binder.getViewType(view) != getItemViewType(position)) {
+            // The row of the other view type is needed
+            notifyDataSetChanged()
             return
         }
-        val colorStateList = ColorStateList.valueOf(color)
-        val wrappedDrawable = DrawableCompat.wrap(drawable)
-        DrawableCompat.setTintList(wrappedDrawable, colorStateList)
+        if (changeKind == null || item !is Message) {
+            getView(position, view, parent)
+            return
+        }
+        if (!binder.bindMessageChange(view, item, changeKind)) {
+            // The row of the other view type is needed
+            notifyDataSetChanged()
+        }
+    }
+
+    /**
+     * Compute layouts of the added text messages on the background thread
+     * @param position first position of the added items
+     * @param count number of the added items
+     */
+    fun precomputeText(position: Int, count: Int) {
+        binder.precomputeText(objects, position, count)
+    }
+
+    /**
+     * Bind send time again to the row only if its text is changed
+     * @param view row of the item
+     * @param position item position
+     * @return true if the text is changed
+     */
+    fun refreshTimeText(view: View, position: Int): Boolean {
+        val item = getItem(position) as? Message ?: return false
+        if (binder.getViewType(view) != getItemViewType(position)) {
+            return false
+        }
+        return binder.refreshTimeText(view, item)
+    }
+
+    /**
+     * Set renderer of the message type
+     * @param type message type
+     * @param renderer renderer for the type
+     */
+    fun registerRenderer(type: Message.Type, renderer: MessageRenderer) {
+        binder.registerRenderer(type, renderer)
+        notifyDataSetChanged()
+    }
+
+    /**
+     * Set renderer of the custom message type
+     * @param customType custom type set by Message.Builder.setCustomType
+     * @param renderer renderer for the custom type
+     */
+    fun registerRenderer(customType: String, renderer: MessageRenderer) {
+        binder.registerRenderer(customType, renderer)
+        notifyDataSetChanged()
     }
 
     /**
@@ -282,7 +131,7 @@ class MessageAdapter(context: Context, resource: Int, private val objects: List<
      * @param color left bubble color
      */
     fun setLeftBubbleColor(color: Int) {
-        leftBubbleColor = color
+        binder.leftBubbleColor = color
         notifyDataSetChanged()
     }
 
@@ -291,88 +140,67 @@ class MessageAdapter(context: Context, resource: Int, private val objects: List<
      * @param color right bubble color
      */
     fun setRightBubbleColor(color: Int) {
-        rightBubbleColor = color
+        binder.rightBubbleColor = color
         notifyDataSetChanged()
     }
 
     fun setOnIconClickListener(onIconClickListener: Message.OnIconClickListener) {
-        iconClickListener = onIconClickListener
+        binder.iconClickListener = onIconClickListener
     }
 
     fun setOnBubbleClickListener(onBubbleClickListener: Message.OnBubbleClickListener) {
-        bubbleClickListener = onBubbleClickListener
+        binder.bubbleClickListener = onBubbleClickListener
     }
 
     fun setOnIconLongClickListener(onIconLongClickListener: Message.OnIconLongClickListener) {
-        iconLongClickListener = onIconLongClickListener
+        binder.iconLongClickListener = onIconLongClickListener
     }
 
     fun setOnBubbleLongClickListener(onBubbleLongClickListener: Message.OnBubbleLongClickListener) {
-        bubbleLongClickListener = onBubbleLongClickListener
+        binder.bubbleLongClickListener = onBubbleLongClickListener
     }
 
     fun setUsernameTextColor(usernameTextColor: Int) {
-        this.usernameTextColor = usernameTextColor
+        binder.usernameTextColor = usernameTextColor
         notifyDataSetChanged()
     }
 
     fun setSendTimeTextColor(sendTimeTextColor: Int) {
-        this.sendTimeTextColor = sendTimeTextColor
+        binder.sendTimeTextColor = sendTimeTextColor
         notifyDataSetChanged()
     }
 
     fun setDateSeparatorColor(dateSeparatorColor: Int) {
-        this.dateLabelColor = dateSeparatorColor
+        binder.dateLabelColor = dateSeparatorColor
         notifyDataSetChanged()
     }
 
     fun setRightMessageTextColor(rightMessageTextColor: Int) {
-        this.rightMessageTextColor = rightMessageTextColor
+        binder.rightMessageTextColor = rightMessageTextColor
         notifyDataSetChanged()
     }
 
     fun setLeftMessageTextColor(leftMessageTextColor: Int) {
-        this.leftMessageTextColor = leftMessageTextColor
+        binder.leftMessageTextColor = leftMessageTextColor
         notifyDataSetChanged()
     }
 
     fun setMessageTopMargin(messageTopMargin: Int) {
-        this.messageTopMargin = messageTopMargin
+        binder.messageTopMargin = messageTopMargin
     }
 
     fun setMessageBottomMargin(messageBottomMargin: Int) {
-        this.messageBottomMargin = messageBottomMargin
+        binder.messageBottomMargin = messageBottomMargin
     }
 
     fun setStatusColor(statusTextColor: Int) {
-        statusColor = statusTextColor
+        binder.statusColor = statusTextColor
         notifyDataSetChanged()
     }
 
     fun setAttribute(attribute: Attribute) {
-        this.attribute = attribute
+        binder.attribute = attribute
         notifyDataSetChanged()
     }
 
-    internal inner class MessageViewHolder {
-        var icon: CircleImageView? = null
-        var iconContainer: FrameLayout? = null
-        var messagePicture: RoundImageView? = null
-        var messageLink: TextView? = null
-        var messageText: TextView? = null
-        var timeText: TextView? = null
-        var username: TextView? = null
-        var mainMessageContainer: FrameLayout? = null
-        var usernameContainer: FrameLayout? = null
-        var statusContainer: FrameLayout? = null
-        var statusIcon: ImageView? = null
-        var statusText: TextView? = null
-
-    }
-
-    internal inner class DateViewHolder {
-        var dateLabelText: TextView? = null
-    }
-
-
 }
@@ -0,0 +1,36 @@
+package com.github.bassaer.chatmessageview.view
+
+import com.github.bassaer.chatmessageview.model.Message
+
+/**
+ * Source of the message history loaded page by page.
+ * The view asks for older pages when the user scrolls near the top, and asks for newer
+ * pages again after they were dropped to keep the number of messages in memory bounded.
+ * So the source must also return the messages set to the view.
+ */
+interface MessagePageSource {
+
+    /**
+     * Load messages older than the message
+     * @param oldest oldest message in the view, null if the view has no message
+     * @param pageSize max number of messages to load
+     * @param callback callback to call on the main thread. It can be called later.
+     */
+    fun loadOlder(oldest: Message?, pageSize: Int, callback: Callback)
+
+    /**
+     * Load messages newer than the message
+     * @param newest newest message in the view
+     * @param pageSize max number of messages to load
+     * @param callback callback to call on the main thread. It can be called later.
+     */
+    fun loadNewer(newest: Message, pageSize: Int, callback: Callback)
+
+    interface Callback {
+        /**
+         * Called when the page is loaded
+         * @param messages loaded messages, empty if there is no more message
+         */
+        fun onPageLoaded(messages: List<Message>)
+    }
+}
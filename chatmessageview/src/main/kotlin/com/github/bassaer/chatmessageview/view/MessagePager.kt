@@ -0,0 +1,186 @@
+package com.github.bassaer.chatmessageview.view
+
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.model.MessageTimeline
+import java.util.*
+
+/**
+ * Loads pages of the timeline from MessagePageSource when the visible rows get close to
+ * either end, and drops the messages on the other end to keep at most maxMessages.
+ * Each page is added by applyChange, so that the view applies the changes collected
+ * for the next frame before it, and refreshes the rows once with the shown rows in place.
+ */
+internal class MessagePager(
+        private val timeline: MessageTimeline,
+        private val source: MessagePageSource,
+        private val pageSize: Int,
+        private val prefetchDistance: Int,
+        private val maxMessages: Int,
+        private val applyChange: (() -> Unit) -> Unit,
+        private val onNewestPageLoaded: () -> Unit
+) {
+
+    private var isLoadingOlder = false
+    private var isLoadingNewer = false
+    private var isClosed = false
+
+    /**
+     * Incremented when the timeline is replaced, so that pages requested before are ignored
+     */
+    private var generation = 0
+
+    /**
+     * New messages held until the newer pages are loaded again
+     */
+    private val heldMessages = ArrayList<Message>()
+
+    /**
+     * False after the source returned an empty page
+     */
+    private var hasOlder = true
+
+    /**
+     * True while newer messages were dropped
+     */
+    private var hasNewer = false
+
+    /**
+     * Load pages if the visible rows are close to either end
+     * @param firstPosition first visible position of chatList
+     * @param lastPosition last visible position of chatList
+     */
+    fun onVisibleRangeChanged(firstPosition: Int, lastPosition: Int) {
+        if (firstPosition <= prefetchDistance) {
+            loadOlder()
+        } else if (hasNewer && lastPosition >= timeline.chatList.size - 1 - prefetchDistance) {
+            loadNewer()
+        }
+    }
+
+    fun loadOlder() {
+        if (isLoadingOlder || !hasOlder || isClosed) {
+            return
+        }
+        isLoadingOlder = true
+        val isFirstPage = timeline.messageList.isEmpty()
+        val requestGeneration = generation
+        source.loadOlder(timeline.messageList.firstOrNull(), pageSize, object : MessagePageSource.Callback {
+            override fun onPageLoaded(messages: List<Message>) {
+                if (isClosed || requestGeneration != generation) {
+                    return
+                }
+                isLoadingOlder = false
+                if (messages.isEmpty()) {
+                    hasOlder = false
+                    return
+                }
+                applyChange {
+                    timeline.addOlder(messages)
+                    val overflow = timeline.messageList.size - maxMessages
+                    if (overflow > 0) {
+                        // The user is at the top, so the newest messages are far from the screen
+                        timeline.removeNewest(overflow)
+                        hasNewer = true
+                    }
+                }
+                if (isFirstPage) {
+                    onNewestPageLoaded()
+                }
+            }
+        })
+    }
+
+    private fun loadNewer() {
+        val newest = timeline.messageList.lastOrNull()
+        if (isLoadingNewer || newest == null || isClosed) {
+            return
+        }
+        isLoadingNewer = true
+        val requestGeneration = generation
+        source.loadNewer(newest, pageSize, object : MessagePageSource.Callback {
+            override fun onPageLoaded(messages: List<Message>) {
+                if (isClosed || requestGeneration != generation) {
+                    return
+                }
+                isLoadingNewer = false
+                if (messages.isEmpty()) {
+                    hasNewer = false
+                    addHeldMessages()
+                    return
+                }
+                releaseLoadedMessages(messages)
+                applyChange {
+                    timeline.addNewer(messages)
+                    val overflow = timeline.messageList.size - maxMessages
+                    if (overflow > 0) {
+                        timeline.removeOldest(overflow)
+                        hasOlder = true
+                    }
+                }
+            }
+        })
+    }
+
+    /**
+     * Hold the new message if newer messages were dropped.
+     * The message is added after the newer pages are loaded again when the user scrolls
+     * down to them, so that there is no gap between the shown messages and the new one
+     * and the shown rows are not moved.
+     * @param message new message
+     * @return true if the message is held and added by the pager
+     */
+    fun holdNewMessage(message: Message): Boolean {
+        if (!hasNewer || isClosed) {
+            return false
+        }
+        heldMessages.add(message)
+        return true
+    }
+
+    /**
+     * Forget the held messages which the source already returned
+     */
+    private fun releaseLoadedMessages(messages: List<Message>) {
+        if (heldMessages.isEmpty()) {
+            return
+        }
+        val loaded = Collections.newSetFromMap(IdentityHashMap<Message, Boolean>())
+        loaded.addAll(messages)
+        val loadedIds = messages.mapNotNullTo(HashSet()) { it.id }
+        heldMessages.removeAll { loaded.contains(it) || (it.id != null && it.id in loadedIds) }
+    }
+
+    private fun addHeldMessages() {
+        if (heldMessages.isEmpty()) {
+            return
+        }
+        val messages = ArrayList(heldMessages)
+        heldMessages.clear()
+        applyChange { timeline.mergeSorted(messages) }
+    }
+
+    /**
+     * Forget the pages and held messages after the messages of the timeline were replaced
+     */
+    fun reset() {
+        generation++
+        heldMessages.clear()
+        isLoadingOlder = false
+        isLoadingNewer = false
+        hasOlder = true
+        hasNewer = false
+    }
+
+    /**
+     * Ignore the pages loaded after this call
+     */
+    fun close() {
+        isClosed = true
+    }
+
+    companion object {
+        const val DEFAULT_PAGE_SIZE = 50
+        const val DEFAULT_PREFETCH_DISTANCE = 10
+        const val DEFAULT_MAX_MESSAGES = 500
+    }
+}
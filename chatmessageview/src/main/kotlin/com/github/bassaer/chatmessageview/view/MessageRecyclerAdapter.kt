@@ -0,0 +1,195 @@
+package com.github.bassaer.chatmessageview.view
+
+import android.content.Context
+import android.support.v7.widget.RecyclerView
+import android.view.View
+import android.view.ViewGroup
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.models.Attribute
+
+/**
+ * RecyclerView adapter for the chat timeline
+ */
+class MessageRecyclerAdapter(context: Context, private val objects: List<Any>, attribute: Attribute) : RecyclerView.Adapter<MessageRecyclerAdapter.ItemViewHolder>() {
+
+    private val binder = MessageViewBinder(context, attribute)
+    private val warmViewPool = WarmViewPool(binder)
+
+    init {
+        setHasStableIds(true)
+    }
+
+    override fun getItemCount(): Int = objects.size
+
+    override fun getItemId(position: Int): Long = binder.getItemId(objects[position])
+
+    override fun getItemViewType(position: Int): Int = binder.getItemViewType(objects[position])
+
+    override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): ItemViewHolder {
+        val view = warmViewPool.take(viewType) ?: binder.createView(null, viewType)
+        // Rows are inflated without parent, so their size in the list is set here
+        view.layoutParams = RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT)
+        return ItemViewHolder(view)
+    }
+
+    override fun onBindViewHolder(holder: ItemViewHolder, position: Int) {
+        val item = objects[position]
+        if (item is Message) {
+            binder.bindMessageView(holder.itemView, item)
+        } else {
+            binder.bindDateView(holder.itemView, item)
+        }
+    }
+
+    override fun onBindViewHolder(holder: ItemViewHolder, position: Int, payloads: MutableList<Any>) {
+        val item = objects[position]
+        if (payloads.isEmpty() || item !is Message) {
+            onBindViewHolder(holder, position)
+            return
+        }
+        for (payload in payloads) {
+            if (!binder.bindMessageChange(holder.itemView, item, payload as Message.ChangeKind)) {
+                onBindViewHolder(holder, position)
+                return
+            }
+        }
+    }
+
+    /**
+     * Inflate rows of the common view types on the background thread.
+     * The rows are used instead of inflating new ones when the list needs them.
+     * @param rowsPerType number of rows for each view type
+     */
+    fun prefillViews(rowsPerType: Int) {
+        warmViewPool.prefill(binder.getCommonViewTypes(), rowsPerType)
+    }
+
+    /**
+     * Drop the rows inflated in advance
+     */
+    fun clearPrefilledViews() {
+        warmViewPool.clear()
+    }
+
+    /**
+     * Compute layouts of the added text messages on the background thread
+     * @param position first position of the added items
+     * @param count number of the added items
+     */
+    fun precomputeText(position: Int, count: Int) {
+        binder.precomputeText(objects, position, count)
+    }
+
+    /**
+     * Bind send time again to the row only if its text is changed
+     * @param holder holder of the row
+     * @param position item position
+     * @return true if the text is changed
+     */
+    fun refreshTimeText(holder: ItemViewHolder, position: Int): Boolean {
+        val item = objects[position] as? Message ?: return false
+        if (holder.itemViewType != getItemViewType(position)) {
+            return false
+        }
+        return binder.refreshTimeText(holder.itemView, item)
+    }
+
+    /**
+     * Set renderer of the message type
+     * @param type message type
+     * @param renderer renderer for the type
+     */
+    fun registerRenderer(type: Message.Type, renderer: MessageRenderer) {
+        binder.registerRenderer(type, renderer)
+        notifyDataSetChanged()
+    }
+
+    /**
+     * Set renderer of the custom message type
+     * @param customType custom type set by Message.Builder.setCustomType
+     * @param renderer renderer for the custom type
+     */
+    fun registerRenderer(customType: String, renderer: MessageRenderer) {
+        binder.registerRenderer(customType, renderer)
+        notifyDataSetChanged()
+    }
+
+    /**
+     * Set left bubble background color
+     * @param color left bubble color
+     */
+    fun setLeftBubbleColor(color: Int) {
+        binder.leftBubbleColor = color
+        notifyDataSetChanged()
+    }
+
+    /**
+     * Set right bubble background color
+     * @param color right bubble color
+     */
+    fun setRightBubbleColor(color: Int) {
+        binder.rightBubbleColor = color
+        notifyDataSetChanged()
+    }
+
+    fun setOnIconClickListener(onIconClickListener: Message.OnIconClickListener) {
+        binder.iconClickListener = onIconClickListener
+    }
+
+    fun setOnBubbleClickListener(onBubbleClickListener: Message.OnBubbleClickListener) {
+        binder.bubbleClickListener = onBubbleClickListener
+    }
+
+    fun setOnIconLongClickListener(onIconLongClickListener: Message.OnIconLongClickListener) {
+        binder.iconLongClickListener = onIconLongClickListener
+    }
+
+    fun setOnBubbleLongClickListener(onBubbleLongClickListener: Message.OnBubbleLongClickListener) {
+        binder.bubbleLongClickListener = onBubbleLongClickListener
+    }
+
+    fun setUsernameTextColor(usernameTextColor: Int) {
+        binder.usernameTextColor = usernameTextColor
+        notifyDataSetChanged()
+    }
+
+    fun setSendTimeTextColor(sendTimeTextColor: Int) {
+        binder.sendTimeTextColor = sendTimeTextColor
+        notifyDataSetChanged()
+    }
+
+    fun setDateSeparatorColor(dateSeparatorColor: Int) {
+        binder.dateLabelColor = dateSeparatorColor
+        notifyDataSetChanged()
+    }
+
+    fun setRightMessageTextColor(rightMessageTextColor: Int) {
+        binder.rightMessageTextColor = rightMessageTextColor
+        notifyDataSetChanged()
+    }
+
+    fun setLeftMessageTextColor(leftMessageTextColor: Int) {
+        binder.leftMessageTextColor = leftMessageTextColor
+        notifyDataSetChanged()
+    }
+
+    fun setMessageTopMargin(messageTopMargin: Int) {
+        binder.messageTopMargin = messageTopMargin
+    }
+
+    fun setMessageBottomMargin(messageBottomMargin: Int) {
+        binder.messageBottomMargin = messageBottomMargin
+    }
+
+    fun setStatusColor(statusTextColor: Int) {
+        binder.statusColor = statusTextColor
+        notifyDataSetChanged()
+    }
+
+    fun setAttribute(attribute: Attribute) {
+        binder.attribute = attribute
+        notifyDataSetChanged()
+    }
+
+    class ItemViewHolder(view: View) : RecyclerView.ViewHolder(view)
+}
@@ -0,0 +1,648 @@
+package com.github.bassaer.chatmessageview.view
+
+import android.content.Context
+import android.os.SystemClock
+import android.support.v4.view.ViewCompat
+import android.support.v7.util.ListUpdateCallback
+import android.support.v7.widget.LinearLayoutManager
+import android.support.v7.widget.RecyclerView
+import android.util.AttributeSet
+import android.view.View
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.model.MessageTimeline
+import com.github.bassaer.chatmessageview.models.Attribute
+import com.github.bassaer.chatmessageview.util.ChatExecutor
+import com.github.bassaer.chatmessageview.util.RefreshScheduler
+import com.github.bassaer.chatmessageview.util.TimeUtils
+
+/**
+ * Chat timeline backed by RecyclerView.
+ * Each change is notified to the adapter as inserted, removed or changed rows,
+ * so only the affected rows are bound again.
+ */
+class MessageRecyclerView : RecyclerView {
+
+    private val timeline = MessageTimeline()
+    /**
+     * Only messages.
+     * The changes collected for the next frame are applied first, so that a message
+     * set just before is included.
+     */
+    val messageList: ArrayList<Message>
+        get() {
+            endFrameUpdate()
+            return timeline.messageList
+        }
+
+    private lateinit var messageAdapter: MessageRecyclerAdapter
+
+    private var attribute: Attribute
+
+    private var pager: MessagePager? = null
+
+    /**
+     * Incremented when messages are replaced, so that an older initAsync result is not shown
+     */
+    private var loadGeneration = 0
+
+    private val reorderBuffer = ReorderBuffer(timeline)
+    private val reorderFlush = Runnable { flushHeldMessages() }
+
+    private val frameUpdate = Runnable { endFrameUpdate() }
+    /**
+     * Whether changes are collected until the next frame
+     */
+    private var isFrameUpdateStarted = false
+    private var isScrollToEndRequested = false
+
+    /**
+     * Send time labels which can not tell when they change are refreshed at this time
+     */
+    private var refreshInterval: Long = 60000
+
+    private val refreshClient = object : RefreshScheduler.Client {
+        override fun onRefresh() {
+            refreshTimeLabels()
+        }
+    }
+    private val visibleRowsUpdate = Runnable { onVisibleRowsChanged() }
+    /**
+     * Whether send time labels are refreshed. True while the view is shown.
+     */
+    private var isTimeRefreshEnabled = false
+    private var isVisibleRowsUpdateRequested = false
+
+    constructor(context: Context, attrs: AttributeSet) : super(context, attrs) {
+        attribute = Attribute(context, attrs)
+        init()
+    }
+
+    constructor(context: Context, attrs: AttributeSet, defStyleAttr: Int) : super(context, attrs, defStyleAttr) {
+        attribute = Attribute(context, attrs)
+        init()
+    }
+
+    fun init(list: List<Message>) {
+        loadGeneration++
+        pager?.reset()
+        timeline.setMessages(list)
+    }
+
+    /**
+     * Replace the messages like init(list), but sort them and build the rows
+     * on the background thread.
+     * All rows are shown at once on the main thread from the newest message, and
+     * messages added, changed or removed until then are applied to them again.
+     * @param list messages to show
+     */
+    fun initAsync(list: List<Message>) {
+        val generation = ++loadGeneration
+        val messages = ArrayList(list)
+        pager?.reset()
+        timeline.startLoad()
+        ChatExecutor.execute {
+            val prepared = timeline.prepare(messages)
+            ChatExecutor.post {
+                // Ignore the result if other messages were set while preparing
+                if (generation == loadGeneration) {
+                    publish(prepared)
+                }
+            }
+        }
+    }
+
+    private fun publish(prepared: MessageTimeline.Prepared) {
+        endFrameUpdate()
+        if (timeline.publish(prepared) && messageAdapter.itemCount > 0) {
+            scrollToPosition(messageAdapter.itemCount - 1)
+        }
+    }
+
+    fun init(attribute: Attribute) {
+        this.attribute = attribute
+        init()
+    }
+
+    /**
+     * Initialize list
+     */
+    fun init() {
+        if (layoutManager == null) {
+            layoutManager = LinearLayoutManager(context)
+        }
+        if (::messageAdapter.isInitialized) {
+            // Renderers, colors and listeners set before are kept
+            messageAdapter.setAttribute(attribute)
+        } else {
+            messageAdapter = MessageRecyclerAdapter(context, timeline.chatList, attribute)
+            messageAdapter.prefillViews(attribute.warmPoolSize)
+        }
+        messageAdapter.precomputeText(0, timeline.chatList.size)
+        adapter = messageAdapter
+        timeline.updateCallback = AdapterUpdateCallback(messageAdapter)
+    }
+
+    /**
+     * Start collecting changes. They are applied at the last endUpdate
+     * with one sort, one notification and one scroll.
+     * Changes made outside of beginUpdate and endUpdate are applied at the next frame.
+     */
+    fun beginUpdate() {
+        timeline.beginUpdate()
+    }
+
+    /**
+     * Apply the changes collected since beginUpdate
+     */
+    fun endUpdate() {
+        timeline.endUpdate()
+        if (isScrollToEndRequested && !timeline.isInUpdate) {
+            isScrollToEndRequested = false
+            scrollToEnd()
+        }
+    }
+
+    /**
+     * Apply all changes in the block at once
+     */
+    inline fun batch(block: () -> Unit) {
+        beginUpdate()
+        try {
+            block()
+        } finally {
+            endUpdate()
+        }
+    }
+
+    /**
+     * Collect changes until the next frame.
+     * Nothing is collected while the view is detached, since no frame is drawn for it.
+     */
+    private fun startFrameUpdate() {
+        if (isFrameUpdateStarted || !ViewCompat.isAttachedToWindow(this)) {
+            return
+        }
+        isFrameUpdateStarted = true
+        timeline.beginUpdate()
+        ViewCompat.postOnAnimation(this, frameUpdate)
+    }
+
+    private fun endFrameUpdate() {
+        if (!isFrameUpdateStarted) {
+            return
+        }
+        isFrameUpdateStarted = false
+        removeCallbacks(frameUpdate)
+        endUpdate()
+    }
+
+    /**
+     * Set new message
+     * @param message new message
+     */
+    fun setMessage(message: Message) {
+        if (pager?.holdNewMessage(message) == true) {
+            // Newer pages were dropped, so the message is added after they are loaded again
+            return
+        }
+        // Messages sent by the user are shown at once
+        if (reorderBuffer.windowMillis > 0 && !message.isRightMessage) {
+            if (reorderBuffer.hold(message, SystemClock.uptimeMillis())) {
+                postDelayed(reorderFlush, reorderBuffer.windowMillis)
+            }
+            return
+        }
+        startFrameUpdate()
+        timeline.add(message)
+    }
+
+    /**
+     * Hold new messages for the time before they are shown, so that messages
+     * arriving a little out of order are shown in order.
+     * Each message is held for the whole time, and messages sent by the user are not held.
+     * @param millis time to hold new messages. 0 shows them at the next frame.
+     */
+    fun setReorderWindow(millis: Long) {
+        reorderBuffer.windowMillis = Math.max(millis, 0)
+        if (millis <= 0) {
+            flushReorderBuffer()
+        }
+    }
+
+    private fun flushReorderBuffer() {
+        removeCallbacks(reorderFlush)
+        if (reorderBuffer.isEmpty) {
+            return
+        }
+        startFrameUpdate()
+        reorderBuffer.flushAll()
+    }
+
+    /**
+     * Show the messages held for the whole window, and wait for the next one
+     */
+    private fun flushHeldMessages() {
+        if (reorderBuffer.isEmpty) {
+            return
+        }
+        startFrameUpdate()
+        val now = SystemClock.uptimeMillis()
+        val nextFlushTime = reorderBuffer.flush(now)
+        if (nextFlushTime > 0) {
+            postDelayed(reorderFlush, nextFlushTime - now)
+        }
+    }
+
+    /**
+     * Add a page of older history sorted from oldest to newest.
+     * The page is merged into the messages in one pass, and the shown rows stay in place.
+     * @param sortedPage older messages sorted by date
+     */
+    fun prependHistory(sortedPage: List<Message>) {
+        mergeSorted(sortedPage)
+    }
+
+    /**
+     * Merge messages sorted from oldest to newest in one pass.
+     * Only the new rows and the date labels of new days are inserted.
+     * @param batch messages sorted by date
+     */
+    fun mergeSorted(batch: List<Message>) {
+        startFrameUpdate()
+        timeline.mergeSorted(batch)
+    }
+
+    /**
+     * Load the history page by page from the source.
+     * Older pages are loaded when the user scrolls within prefetchDistance rows of the top,
+     * and at most maxMessages messages are kept in the view.
+     * @param source page source
+     * @param pageSize number of messages loaded at once
+     * @param prefetchDistance number of rows from the end to start loading
+     * @param maxMessages max number of messages kept in the view
+     */
+    @JvmOverloads
+    fun setPageSource(source: MessagePageSource,
+                      pageSize: Int = MessagePager.DEFAULT_PAGE_SIZE,
+                      prefetchDistance: Int = MessagePager.DEFAULT_PREFETCH_DISTANCE,
+                      maxMessages: Int = MessagePager.DEFAULT_MAX_MESSAGES) {
+        pager?.close()
+        val newPager = MessagePager(timeline, source, pageSize, prefetchDistance, Math.max(maxMessages, pageSize * 2), { change ->
+            // Pages are added after the changes collected for the next frame
+            endFrameUpdate()
+            change()
+        }) {
+            scrollToPosition(timeline.chatList.size - 1)
+        }
+        pager = newPager
+        if (timeline.messageList.isEmpty()) {
+            newPager.loadOlder()
+        } else {
+            requestVisibleRowsUpdate()
+        }
+    }
+
+    fun remove(message: Message) {
+        if (reorderBuffer.remove(message)) {
+            return
+        }
+        startFrameUpdate()
+        timeline.remove(message)
+    }
+
+    fun removeAll() {
+        loadGeneration++
+        pager?.reset()
+        removeCallbacks(reorderFlush)
+        reorderBuffer.clear()
+        startFrameUpdate()
+        timeline.clear()
+    }
+
+    /**
+     * Remove all messages matching the predicate with one refresh
+     * @param predicate returns true for the message to remove
+     */
+    fun removeIf(predicate: (Message) -> Boolean) {
+        reorderBuffer.removeIf(predicate)
+        startFrameUpdate()
+        timeline.removeIf(predicate)
+    }
+
+    /**
+     * Remove the messages from fromIndex until toIndex of messageList with one refresh
+     * @param fromIndex index of the first message to remove
+     * @param toIndex index after the last message to remove
+     */
+    fun removeRange(fromIndex: Int, toIndex: Int) {
+        startFrameUpdate()
+        timeline.removeRange(fromIndex, toIndex)
+    }
+
+    /**
+     * Remove the messages of the ids with one refresh
+     * @param ids message ids
+     */
+    fun removeAll(ids: Collection<String>) {
+        reorderBuffer.removeIf { it.id in ids }
+        startFrameUpdate()
+        timeline.removeAll(ids)
+    }
+
+    /**
+     * Refresh only the changed part of the message
+     * @param message changed message
+     * @param changeKind changed part
+     */
+    fun updateMessage(message: Message, changeKind: Message.ChangeKind) {
+        startFrameUpdate()
+        timeline.update(message, changeKind)
+    }
+
+    /**
+     * Return the message of the id
+     * @param id id set by Message.Builder.setId
+     * @return message, or null if no message has the id
+     */
+    fun findById(id: String): Message? = timeline.findById(id) ?: reorderBuffer.findById(id)
+
+    /**
+     * Refresh only the changed part of the message of the id
+     * @param id message id
+     * @param changeKind changed part
+     * @return false if no message has the id
+     */
+    fun updateById(id: String, changeKind: Message.ChangeKind): Boolean {
+        val message = findById(id) ?: return false
+        updateMessage(message, changeKind)
+        return true
+    }
+
+    /**
+     * Remove the message of the id
+     * @param id message id
+     * @return removed message, or null if no message has the id
+     */
+    fun removeById(id: String): Message? {
+        val message = findById(id) ?: return null
+        remove(message)
+        return message
+    }
+
+    private fun onVisibleRowsChanged() {
+        isVisibleRowsUpdateRequested = false
+        val manager = layoutManager as? LinearLayoutManager
+        if (manager != null && manager.findFirstVisibleItemPosition() != NO_POSITION) {
+            pager?.onVisibleRangeChanged(manager.findFirstVisibleItemPosition(), manager.findLastVisibleItemPosition())
+        }
+        refreshTimeLabels()
+    }
+
+    /**
+     * Bind send time again to the visible rows whose text is changed
+     */
+    private fun refreshTimeLabels() {
+        if (!isTimeRefreshEnabled) {
+            return
+        }
+        if (TimeUtils.checkDefaultsChanged()) {
+            // All labels are formatted again for the new locale or time zone
+            timeline.refreshDays()
+            messageAdapter.notifyItemRangeChanged(0, messageAdapter.itemCount)
+        }
+        val now = System.currentTimeMillis()
+        var nextChangeTime = Long.MAX_VALUE
+        for (i in 0 until childCount) {
+            val holder = getChildViewHolder(getChildAt(i)) as MessageRecyclerAdapter.ItemViewHolder
+            val position = holder.adapterPosition
+            val item = if (position != NO_POSITION) timeline.chatList[position] else null
+            if (item is Message) {
+                messageAdapter.refreshTimeText(holder, position)
+                nextChangeTime = Math.min(nextChangeTime, item.getTimeTextChangeTime(now) ?: now + refreshInterval)
+            }
+        }
+        scheduleTimeRefresh(now, nextChangeTime)
+    }
+
+    /**
+     * Schedule one refresh for the earliest time when a visible label changes
+     */
+    private fun scheduleTimeRefresh(now: Long, nextChangeTime: Long) {
+        if (nextChangeTime == Long.MAX_VALUE) {
+            RefreshScheduler.stop(refreshClient)
+        } else {
+            RefreshScheduler.scheduleAt(refreshClient, SystemClock.uptimeMillis() + Math.max(nextChangeTime - now, 0))
+        }
+    }
+
+    /**
+     * Load pages and refresh time labels after the visible rows are changed.
+     * Requests in the same frame are merged.
+     */
+    private fun requestVisibleRowsUpdate() {
+        if (isTimeRefreshEnabled && !isVisibleRowsUpdateRequested) {
+            isVisibleRowsUpdateRequested = true
+            post(visibleRowsUpdate)
+        }
+    }
+
+    private fun setTimeRefreshEnabled(enabled: Boolean) {
+        isTimeRefreshEnabled = enabled
+        if (enabled) {
+            requestVisibleRowsUpdate()
+        } else {
+            RefreshScheduler.stop(refreshClient)
+        }
+    }
+
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        setTimeRefreshEnabled(true)
+    }
+
+    override fun onDetachedFromWindow() {
+        // Frames are not drawn any more
+        flushReorderBuffer()
+        endFrameUpdate()
+        setTimeRefreshEnabled(false)
+        messageAdapter.clearPrefilledViews()
+        super.onDetachedFromWindow()
+    }
+
+    override fun onWindowVisibilityChanged(visibility: Int) {
+        super.onWindowVisibilityChanged(visibility)
+        // Stop while the app is in background
+        setTimeRefreshEnabled(visibility == View.VISIBLE)
+    }
+
+    override fun onScrolled(dx: Int, dy: Int) {
+        super.onScrolled(dx, dy)
+        // Also called when the visible rows are changed by layout
+        requestVisibleRowsUpdate()
+    }
+
+    fun setRefreshInterval(refreshInterval: Long) {
+        this.refreshInterval = refreshInterval
+        requestVisibleRowsUpdate()
+    }
+
+    /**
+     * Scroll to the last row. If changes are being collected or new messages are held,
+     * it scrolls after they are applied.
+     */
+    fun scrollToEnd() {
+        if (timeline.isInUpdate || !reorderBuffer.isEmpty) {
+            isScrollToEndRequested = true
+            return
+        }
+        if (messageAdapter.itemCount > 0) {
+            smoothScrollToPosition(messageAdapter.itemCount - 1)
+        }
+    }
+
+    /**
+     * Set renderer of the message type
+     * @param type message type
+     * @param renderer renderer for the type
+     */
+    fun registerRenderer(type: Message.Type, renderer: MessageRenderer) {
+        messageAdapter.registerRenderer(type, renderer)
+    }
+
+    /**
+     * Set renderer of the custom message type
+     * @param customType custom type set by Message.Builder.setCustomType
+     * @param renderer renderer for the custom type
+     */
+    fun registerRenderer(customType: String, renderer: MessageRenderer) {
+        messageAdapter.registerRenderer(customType, renderer)
+    }
+
+    fun setLeftBubbleColor(color: Int) {
+        messageAdapter.setLeftBubbleColor(color)
+    }
+
+    fun setRightBubbleColor(color: Int) {
+        messageAdapter.setRightBubbleColor(color)
+    }
+
+    fun setUsernameTextColor(color: Int) {
+        messageAdapter.setUsernameTextColor(color)
+    }
+
+    fun setSendTimeTextColor(color: Int) {
+        messageAdapter.setSendTimeTextColor(color)
+    }
+
+    fun setMessageStatusColor(color: Int) {
+        messageAdapter.setStatusColor(color)
+    }
+
+    fun setDateSeparatorTextColor(color: Int) {
+        messageAdapter.setDateSeparatorColor(color)
+    }
+
+    fun setRightMessageTextColor(color: Int) {
+        messageAdapter.setRightMessageTextColor(color)
+    }
+
+    fun setLeftMessageTextColor(color: Int) {
+        messageAdapter.setLeftMessageTextColor(color)
+    }
+
+    fun setOnBubbleClickListener(listener: Message.OnBubbleClickListener) {
+        messageAdapter.setOnBubbleClickListener(listener)
+    }
+
+    fun setOnBubbleLongClickListener(listener: Message.OnBubbleLongClickListener) {
+        messageAdapter.setOnBubbleLongClickListener(listener)
+    }
+
+    fun setOnIconClickListener(listener: Message.OnIconClickListener) {
+        messageAdapter.setOnIconClickListener(listener)
+    }
+
+    fun setOnIconLongClickListener(listener: Message.OnIconLongClickListener) {
+        messageAdapter.setOnIconLongClickListener(listener)
+    }
+
+    fun setMessageMarginTop(px: Int) {
+        messageAdapter.setMessageTopMargin(px)
+    }
+
+    fun setMessageMarginBottom(px: Int) {
+        messageAdapter.setMessageBottomMargin(px)
+    }
+
+    /**
+     * Inflate rows on the background thread before they are shown
+     * @param rowsPerType number of rows for each common view type
+     */
+    fun setWarmPoolSize(rowsPerType: Int) {
+        attribute.warmPoolSize = rowsPerType
+        messageAdapter.prefillViews(rowsPerType)
+    }
+
+    /**
+     * Draw each text message row by one view.
+     * It has the same look, but there are fewer views to measure, lay out and draw.
+     * @param enabled true to use flat rows
+     */
+    fun setFlatBubbleEnabled(enabled: Boolean) {
+        attribute.isFlatBubbleEnabled = enabled
+        setAttribute()
+        messageAdapter.precomputeText(0, timeline.chatList.size)
+    }
+
+    fun setMessageFontSize(size: Float) {
+        attribute.messageFontSize = size
+        setAttribute()
+    }
+
+    fun setUsernameFontSize(size: Float) {
+        attribute.usernameFontSize = size
+        setAttribute()
+    }
+
+    fun setTimeLabelFontSize(size: Float) {
+        attribute.timeLabelFontSize = size
+        setAttribute()
+    }
+
+    fun setMessageMaxWidth(width: Int) {
+        attribute.messageMaxWidth = width
+        setAttribute()
+    }
+
+    fun setDateSeparatorFontSize(size: Float) {
+        attribute.dateSeparatorFontSize = size
+        setAttribute()
+    }
+
+    private fun setAttribute() {
+        messageAdapter.setAttribute(attribute)
+    }
+
+    /**
+     * Forward timeline updates to the adapter
+     */
+    private class AdapterUpdateCallback(private val adapter: MessageRecyclerAdapter) : ListUpdateCallback {
+
+        override fun onInserted(position: Int, count: Int) {
+            adapter.precomputeText(position, count)
+            adapter.notifyItemRangeInserted(position, count)
+        }
+
+        override fun onRemoved(position: Int, count: Int) {
+            adapter.notifyItemRangeRemoved(position, count)
+        }
+
+        override fun onMoved(fromPosition: Int, toPosition: Int) {
+            adapter.notifyItemMoved(fromPosition, toPosition)
+        }
+
+        override fun onChanged(position: Int, count: Int, payload: Any?) {
+            adapter.notifyItemRangeChanged(position, count, payload)
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.bassaer.chatmessageview.view
+
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import com.github.bassaer.chatmessageview.model.Message
+
+/**
+ * Renderer of the content in the message bubble.
+ * Each registered renderer has its own view types, so its rows are recycled
+ * only with the rows of the same renderer.
+ */
+interface MessageRenderer {
+
+    /**
+     * Create content view. This is called only when a new row is created.
+     * @param inflater layout inflater
+     * @param container parent of the content view. Do not attach the content view to it.
+     * @param isRightMessage Whether the row is shown right side or not
+     * @return content view
+     */
+    fun createContentView(inflater: LayoutInflater, container: ViewGroup, isRightMessage: Boolean): View
+
+    /**
+     * Show the message on the content view created by createContentView
+     * @param contentView content view
+     * @param message message to show
+     */
+    fun bindContentView(contentView: View, message: Message)
+}
@@ -1,15 +1,18 @@
 package com.github.bassaer.chatmessageview.view
 
 import android.content.Context
-import android.os.Handler
+import android.os.SystemClock
+import android.support.v4.view.ViewCompat
+import android.support.v7.util.ListUpdateCallback
 import android.util.AttributeSet
 import android.view.View
 import android.widget.ListView
 import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.model.MessageTimeline
 import com.github.bassaer.chatmessageview.models.Attribute
-import com.github.bassaer.chatmessageview.util.MessageDateComparator
+import com.github.bassaer.chatmessageview.util.ChatExecutor
+import com.github.bassaer.chatmessageview.util.RefreshScheduler
 import com.github.bassaer.chatmessageview.util.TimeUtils
-import java.util.*
 import kotlin.collections.ArrayList
 
 /**
@@ -18,26 +21,68 @@ import kotlin.collections.ArrayList
  */
 class MessageView : ListView, View.OnFocusChangeListener {
 
+    private val timeline = MessageTimeline()
     /**
-     * All contents such as right message, left message, date label
+     * Only messages.
+     * The changes collected for the next frame are applied first, so that a message
+     * set just before is included.
      */
-    private var chatList: MutableList<Any> = ArrayList()
-    /**
-     * Only messages
-     */
-    val messageList = ArrayList<Message>()
+    val messageList: ArrayList<Message>
+        get() {
+            endFrameUpdate()
+            return timeline.messageList
+        }
 
     private lateinit var messageAdapter: MessageAdapter
 
     private lateinit var keyboardAppearListener: OnKeyboardAppearListener
 
     /**
-     * MessageView is refreshed at this time
+     * Send time labels which can not tell when they change are refreshed at this time
      */
     private var refreshInterval: Long = 60000
 
+    private val refreshClient = object : RefreshScheduler.Client {
+        override fun onRefresh() {
+            refreshTimeLabels()
+        }
+    }
+    private val visibleRowsUpdate = Runnable { onVisibleRowsChanged() }
+    /**
+     * Whether send time labels are refreshed. True while the view is shown.
+     */
+    private var isTimeRefreshEnabled = false
+    private var isVisibleRowsUpdateRequested = false
+
     private var attribute: Attribute
 
+    private var pager: MessagePager? = null
+
+    /**
+     * Incremented when messages are replaced, so that an older initAsync result is not shown
+     */
+    private var loadGeneration = 0
+
+    private val reorderBuffer = ReorderBuffer(timeline)
+    private val reorderFlush = Runnable { flushHeldMessages() }
+
+    private val frameUpdate = Runnable { endFrameUpdate() }
+    /**
+     * Whether changes are collected until the next frame
+     */
+    private var isFrameUpdateStarted = false
+    private var isScrollToEndRequested = false
+    /**
+     * Whether collected changes are being applied to the timeline
+     */
+    private var isApplyingUpdate = false
+    private var isNotifyRequested = false
+    /**
+     * Position of the first visible row after the inserted and removed rows
+     */
+    private var anchorPosition = 0
+    private var anchorTop = 0
+
     interface OnKeyboardAppearListener {
         fun onKeyboardAppeared(hasChanged: Boolean)
     }
@@ -54,14 +99,43 @@ class MessageView : ListView, View.OnFocusChangeListener {
 
 
     fun init(list: List<Message>) {
-        chatList = ArrayList()
         choiceMode = ListView.CHOICE_MODE_NONE
+        loadGeneration++
+        pager?.reset()
+        timeline.setMessages(list)
+        init()
+    }
 
-        for (i in list.indices) {
-            addMessage(list[i])
+    /**
+     * Replace the messages like init(list), but sort them and build the rows
+     * on the background thread.
+     * All rows are shown at once on the main thread from the newest message, and
+     * messages added, changed or removed until then are applied to them again.
+     * @param list messages to show
+     */
+    fun initAsync(list: List<Message>) {
+        val generation = ++loadGeneration
+        val messages = ArrayList(list)
+        pager?.reset()
+        timeline.startLoad()
+        ChatExecutor.execute {
+            val prepared = timeline.prepare(messages)
+            ChatExecutor.post {
+                // Ignore the result if other messages were set while preparing
+                if (generation == loadGeneration) {
+                    publish(prepared)
+                }
+            }
+        }
+    }
+
+    private fun publish(prepared: MessageTimeline.Prepared) {
+        endFrameUpdate()
+        var isPublished = false
+        applyUpdate { isPublished = timeline.publish(prepared) }
+        if (isPublished) {
+            setSelection(count - 1)
         }
-        refresh()
-        init()
     }
 
     fun init(attribute: Attribute) {
@@ -74,17 +148,131 @@ class MessageView : ListView, View.OnFocusChangeListener {
      */
     fun init() {
         dividerHeight = 0
-        messageAdapter = MessageAdapter(context, 0, chatList, attribute)
+        if (::messageAdapter.isInitialized) {
+            // Renderers, colors and listeners set before are kept
+            messageAdapter.setAttribute(attribute)
+        } else {
+            messageAdapter = MessageAdapter(context, 0, timeline.chatList, attribute)
+            messageAdapter.prefillViews(attribute.warmPoolSize)
+        }
+
+        messageAdapter.precomputeText(0, timeline.chatList.size)
 
         adapter = messageAdapter
+        timeline.updateCallback = object : ListUpdateCallback {
+            override fun onInserted(position: Int, count: Int) {
+                messageAdapter.precomputeText(position, count)
+                applyUpdate {
+                    if (position <= anchorPosition) {
+                        anchorPosition += count
+                    }
+                    isNotifyRequested = true
+                }
+            }
+
+            override fun onRemoved(position: Int, count: Int) {
+                applyUpdate {
+                    if (position + count <= anchorPosition) {
+                        anchorPosition -= count
+                    } else if (position < anchorPosition) {
+                        anchorPosition = position
+                    }
+                    isNotifyRequested = true
+                }
+            }
 
-        val handler = Handler()
-        val refreshTimer = Timer(true)
-        refreshTimer.schedule(object : TimerTask() {
-            override fun run() {
-                handler.post { messageAdapter.notifyDataSetChanged() }
+            override fun onMoved(fromPosition: Int, toPosition: Int) {
+                applyUpdate { isNotifyRequested = true }
             }
-        }, 1000, refreshInterval)
+
+            override fun onChanged(position: Int, count: Int, payload: Any?) {
+                // All rows are bound again if the list is refreshed
+                if (!isNotifyRequested) {
+                    rebindVisibleRows(position, count, payload as Message.ChangeKind?)
+                }
+            }
+        }
+    }
+
+    /**
+     * Start collecting changes. They are applied at the last endUpdate
+     * with one sort, one refresh and one scroll.
+     * Changes made outside of beginUpdate and endUpdate are applied at the next frame.
+     */
+    fun beginUpdate() {
+        timeline.beginUpdate()
+    }
+
+    /**
+     * Apply the changes collected since beginUpdate
+     */
+    fun endUpdate() {
+        applyUpdate { timeline.endUpdate() }
+        scrollToEndIfRequested()
+    }
+
+    /**
+     * Apply all changes in the block at once
+     */
+    inline fun batch(block: () -> Unit) {
+        beginUpdate()
+        try {
+            block()
+        } finally {
+            endUpdate()
+        }
+    }
+
+    /**
+     * Collect changes until the next frame.
+     * Nothing is collected while the view is detached, since no frame is drawn for it.
+     */
+    private fun startFrameUpdate() {
+        if (isFrameUpdateStarted || !ViewCompat.isAttachedToWindow(this)) {
+            return
+        }
+        isFrameUpdateStarted = true
+        timeline.beginUpdate()
+        ViewCompat.postOnAnimation(this, frameUpdate)
+    }
+
+    private fun endFrameUpdate() {
+        if (!isFrameUpdateStarted) {
+            return
+        }
+        isFrameUpdateStarted = false
+        removeCallbacks(frameUpdate)
+        endUpdate()
+    }
+
+    /**
+     * Run the block which changes the timeline and refresh the list once.
+     * The visible rows are kept at the same place when rows are inserted or removed above them.
+     * Nested calls are refreshed by the outermost one.
+     */
+    private fun applyUpdate(block: () -> Unit) {
+        if (isApplyingUpdate) {
+            block()
+            return
+        }
+        isApplyingUpdate = true
+        isNotifyRequested = false
+        val firstPosition = firstVisiblePosition
+        anchorPosition = firstPosition
+        anchorTop = getChildAt(0)?.top ?: 0
+        try {
+            block()
+        } finally {
+            isApplyingUpdate = false
+        }
+        if (!isNotifyRequested) {
+            return
+        }
+        isNotifyRequested = false
+        messageAdapter.notifyDataSetChanged()
+        if (childCount > 0 && anchorPosition != firstPosition) {
+            setSelectionFromTop(anchorPosition, anchorTop)
+        }
     }
 
     /**
@@ -92,78 +280,293 @@ class MessageView : ListView, View.OnFocusChangeListener {
      * @param message new message
      */
     fun setMessage(message: Message) {
-        addMessage(message)
-        refresh()
-        messageAdapter.notifyDataSetChanged()
+        if (pager?.holdNewMessage(message) == true) {
+            // Newer pages were dropped, so the message is added after they are loaded again
+            return
+        }
+        // Messages sent by the user are shown at once
+        if (reorderBuffer.windowMillis > 0 && !message.isRightMessage) {
+            if (reorderBuffer.hold(message, SystemClock.uptimeMillis())) {
+                postDelayed(reorderFlush, reorderBuffer.windowMillis)
+            }
+            return
+        }
+        startFrameUpdate()
+        timeline.add(message)
     }
 
     /**
-     * Add message to chat list and message list.
-     * Set date text before set message if sent at the different day.
-     * @param message new message
+     * Hold new messages for the time before they are shown, so that messages
+     * arriving a little out of order are shown in order.
+     * Each message is held for the whole time, and messages sent by the user are not held.
+     * @param millis time to hold new messages. 0 shows them at the next frame.
      */
-    private fun addMessage(message: Message) {
-        messageList.add(message)
-        if (messageList.size == 1) {
-            chatList.add(message.dateSeparateText)
-            chatList.add(message)
+    fun setReorderWindow(millis: Long) {
+        reorderBuffer.windowMillis = Math.max(millis, 0)
+        if (millis <= 0) {
+            flushReorderBuffer()
+        }
+    }
+
+    private fun flushReorderBuffer() {
+        removeCallbacks(reorderFlush)
+        if (reorderBuffer.isEmpty) {
             return
         }
-        val prevMessage = messageList[messageList.size - 2]
-        if (!TimeUtils.isSameDay(prevMessage.createdAt, message.createdAt)) {
-            chatList.add(message.dateSeparateText)
+        startFrameUpdate()
+        reorderBuffer.flushAll()
+    }
+
+    /**
+     * Show the messages held for the whole window, and wait for the next one
+     */
+    private fun flushHeldMessages() {
+        if (reorderBuffer.isEmpty) {
+            return
+        }
+        startFrameUpdate()
+        val now = SystemClock.uptimeMillis()
+        val nextFlushTime = reorderBuffer.flush(now)
+        if (nextFlushTime > 0) {
+            postDelayed(reorderFlush, nextFlushTime - now)
         }
-        chatList.add(message)
     }
 
-    private fun refresh() {
-        sortMessages(messageList)
-        chatList.clear()
-        chatList.addAll(insertDateSeparator(messageList))
-        messageAdapter.notifyDataSetChanged()
+    /**
+     * Add a page of older history sorted from oldest to newest.
+     * The page is merged into the messages in one pass, and the shown rows stay in place.
+     * @param sortedPage older messages sorted by date
+     */
+    fun prependHistory(sortedPage: List<Message>) {
+        mergeSorted(sortedPage)
+    }
+
+    /**
+     * Merge messages sorted from oldest to newest in one pass.
+     * Only the new rows and the date labels of new days are inserted.
+     * @param batch messages sorted by date
+     */
+    fun mergeSorted(batch: List<Message>) {
+        startFrameUpdate()
+        timeline.mergeSorted(batch)
+    }
+
+    /**
+     * Load the history page by page from the source.
+     * Older pages are loaded when the user scrolls within prefetchDistance rows of the top,
+     * and at most maxMessages messages are kept in the view.
+     * @param source page source
+     * @param pageSize number of messages loaded at once
+     * @param prefetchDistance number of rows from the end to start loading
+     * @param maxMessages max number of messages kept in the view
+     */
+    @JvmOverloads
+    fun setPageSource(source: MessagePageSource,
+                      pageSize: Int = MessagePager.DEFAULT_PAGE_SIZE,
+                      prefetchDistance: Int = MessagePager.DEFAULT_PREFETCH_DISTANCE,
+                      maxMessages: Int = MessagePager.DEFAULT_MAX_MESSAGES) {
+        pager?.close()
+        val newPager = MessagePager(timeline, source, pageSize, prefetchDistance, Math.max(maxMessages, pageSize * 2), { change ->
+            // Pages are added after the changes collected for the next frame
+            endFrameUpdate()
+            applyUpdate(change)
+        }) {
+            setSelection(timeline.chatList.size - 1)
+        }
+        pager = newPager
+        if (timeline.messageList.isEmpty()) {
+            newPager.loadOlder()
+        } else {
+            requestVisibleRowsUpdate()
+        }
     }
 
     fun remove(message: Message) {
-        messageList.remove(message)
-        refresh()
+        if (reorderBuffer.remove(message)) {
+            return
+        }
+        startFrameUpdate()
+        timeline.remove(message)
     }
 
     fun removeAll() {
-        messageList.clear()
-        refresh()
+        loadGeneration++
+        pager?.reset()
+        removeCallbacks(reorderFlush)
+        reorderBuffer.clear()
+        startFrameUpdate()
+        timeline.clear()
+    }
+
+    /**
+     * Remove all messages matching the predicate with one refresh
+     * @param predicate returns true for the message to remove
+     */
+    fun removeIf(predicate: (Message) -> Boolean) {
+        reorderBuffer.removeIf(predicate)
+        startFrameUpdate()
+        timeline.removeIf(predicate)
     }
 
-    private fun insertDateSeparator(list: List<Message>): List<Any> {
-        val result = ArrayList<Any>()
-        if (list.isEmpty()) {
-            return result
+    /**
+     * Remove the messages from fromIndex until toIndex of messageList with one refresh
+     * @param fromIndex index of the first message to remove
+     * @param toIndex index after the last message to remove
+     */
+    fun removeRange(fromIndex: Int, toIndex: Int) {
+        startFrameUpdate()
+        timeline.removeRange(fromIndex, toIndex)
+    }
+
+    /**
+     * Remove the messages of the ids with one refresh
+     * @param ids message ids
+     */
+    fun removeAll(ids: Collection<String>) {
+        reorderBuffer.removeIf { it.id in ids }
+        startFrameUpdate()
+        timeline.removeAll(ids)
+    }
+
+    /**
+     * Refresh only the changed part of the message.
+     * Nothing is bound if the message is not on the screen.
+     * @param message changed message
+     * @param changeKind changed part
+     */
+    fun updateMessage(message: Message, changeKind: Message.ChangeKind) {
+        startFrameUpdate()
+        timeline.update(message, changeKind)
+    }
+
+    /**
+     * Return the message of the id
+     * @param id id set by Message.Builder.setId
+     * @return message, or null if no message has the id
+     */
+    fun findById(id: String): Message? = timeline.findById(id) ?: reorderBuffer.findById(id)
+
+    /**
+     * Refresh only the changed part of the message of the id
+     * @param id message id
+     * @param changeKind changed part
+     * @return false if no message has the id
+     */
+    fun updateById(id: String, changeKind: Message.ChangeKind): Boolean {
+        val message = findById(id) ?: return false
+        updateMessage(message, changeKind)
+        return true
+    }
+
+    /**
+     * Remove the message of the id
+     * @param id message id
+     * @return removed message, or null if no message has the id
+     */
+    fun removeById(id: String): Message? {
+        val message = findById(id) ?: return null
+        remove(message)
+        return message
+    }
+
+    private fun rebindVisibleRows(position: Int, count: Int, changeKind: Message.ChangeKind?) {
+        val first = Math.max(position, firstVisiblePosition)
+        val last = Math.min(position + count - 1, lastVisiblePosition)
+        for (i in first..last) {
+            getChildAt(i - firstVisiblePosition)?.let {
+                messageAdapter.rebindView(it, i, changeKind, this)
+            }
         }
-        result.add(list[0].dateSeparateText)
-        result.add(list[0])
-        if (list.size < 2) {
-            return result
+    }
+
+    private fun onVisibleRowsChanged() {
+        isVisibleRowsUpdateRequested = false
+        pager?.onVisibleRangeChanged(firstVisiblePosition, lastVisiblePosition)
+        refreshTimeLabels()
+    }
+
+    /**
+     * Bind send time again to the visible rows whose text is changed
+     */
+    private fun refreshTimeLabels() {
+        if (!isTimeRefreshEnabled) {
+            return
+        }
+        if (TimeUtils.checkDefaultsChanged()) {
+            // All labels are formatted again for the new locale or time zone
+            applyUpdate { timeline.refreshDays() }
+            messageAdapter.notifyDataSetChanged()
         }
-        for (i in 1 until list.size) {
-            val prevMessage = list[i - 1]
-            val currMessage = list[i]
-            if (!TimeUtils.isSameDay(prevMessage.createdAt, currMessage.createdAt)) {
-                result.add(currMessage.dateSeparateText)
+        val now = System.currentTimeMillis()
+        var nextChangeTime = Long.MAX_VALUE
+        for (i in 0 until childCount) {
+            val position = firstVisiblePosition + i
+            val item = if (position < timeline.chatList.size) timeline.chatList[position] else null
+            if (item is Message) {
+                messageAdapter.refreshTimeText(getChildAt(i), position)
+                nextChangeTime = Math.min(nextChangeTime, item.getTimeTextChangeTime(now) ?: now + refreshInterval)
             }
-            result.add(currMessage)
         }
-        return result
+        scheduleTimeRefresh(now, nextChangeTime)
     }
 
     /**
-     * Sort messages
+     * Schedule one refresh for the earliest time when a visible label changes
      */
-    private fun sortMessages(list: List<Message>?) {
-        val dateComparator = MessageDateComparator()
-        if (list != null) {
-            Collections.sort(list, dateComparator)
+    private fun scheduleTimeRefresh(now: Long, nextChangeTime: Long) {
+        if (nextChangeTime == Long.MAX_VALUE) {
+            RefreshScheduler.stop(refreshClient)
+        } else {
+            RefreshScheduler.scheduleAt(refreshClient, SystemClock.uptimeMillis() + Math.max(nextChangeTime - now, 0))
         }
     }
 
+    /**
+     * Load pages and refresh time labels after the visible rows are changed.
+     * Requests in the same frame are merged.
+     */
+    private fun requestVisibleRowsUpdate() {
+        if (isTimeRefreshEnabled && !isVisibleRowsUpdateRequested) {
+            isVisibleRowsUpdateRequested = true
+            post(visibleRowsUpdate)
+        }
+    }
+
+    private fun setTimeRefreshEnabled(enabled: Boolean) {
+        isTimeRefreshEnabled = enabled
+        if (enabled) {
+            requestVisibleRowsUpdate()
+        } else {
+            RefreshScheduler.stop(refreshClient)
+        }
+    }
+
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        setTimeRefreshEnabled(true)
+    }
+
+    override fun onDetachedFromWindow() {
+        // Frames are not drawn any more
+        flushReorderBuffer()
+        endFrameUpdate()
+        setTimeRefreshEnabled(false)
+        messageAdapter.clearPrefilledViews()
+        super.onDetachedFromWindow()
+    }
+
+    override fun onWindowVisibilityChanged(visibility: Int) {
+        super.onWindowVisibilityChanged(visibility)
+        // Stop while the app is in background
+        setTimeRefreshEnabled(visibility == View.VISIBLE)
+    }
+
+    override fun onScrollChanged(l: Int, t: Int, oldl: Int, oldt: Int) {
+        super.onScrollChanged(l, t, oldl, oldt)
+        // Also called when the visible rows are changed by layout
+        requestVisibleRowsUpdate()
+    }
+
     fun setOnKeyboardAppearListener(listener: OnKeyboardAppearListener) {
         keyboardAppearListener = listener
     }
@@ -184,10 +587,46 @@ class MessageView : ListView, View.OnFocusChangeListener {
         }
     }
 
+    /**
+     * Scroll to the last row. If changes are being collected or new messages are held,
+     * it scrolls after they are applied.
+     */
     fun scrollToEnd() {
+        if (timeline.isInUpdate || !reorderBuffer.isEmpty) {
+            isScrollToEndRequested = true
+            return
+        }
         smoothScrollToPosition(count - 1)
     }
 
+    private fun scrollToEndIfRequested() {
+        if (isScrollToEndRequested && !timeline.isInUpdate) {
+            isScrollToEndRequested = false
+            smoothScrollToPosition(count - 1)
+        }
+    }
+
+    /**
+     * Set renderer of the message type
+     * @param type message type
+     * @param renderer renderer for the type
+     */
+    fun registerRenderer(type: Message.Type, renderer: MessageRenderer) {
+        messageAdapter.registerRenderer(type, renderer)
+        // ListView reads view type count only when adapter is set
+        adapter = messageAdapter
+    }
+
+    /**
+     * Set renderer of the custom message type
+     * @param customType custom type set by Message.Builder.setCustomType
+     * @param renderer renderer for the custom type
+     */
+    fun registerRenderer(customType: String, renderer: MessageRenderer) {
+        messageAdapter.registerRenderer(customType, renderer)
+        adapter = messageAdapter
+    }
+
     fun setLeftBubbleColor(color: Int) {
         messageAdapter.setLeftBubbleColor(color)
     }
@@ -246,6 +685,27 @@ class MessageView : ListView, View.OnFocusChangeListener {
 
     fun setRefreshInterval(refreshInterval: Long) {
         this.refreshInterval = refreshInterval
+        requestVisibleRowsUpdate()
+    }
+
+    /**
+     * Inflate rows on the background thread before they are shown
+     * @param rowsPerType number of rows for each common view type
+     */
+    fun setWarmPoolSize(rowsPerType: Int) {
+        attribute.warmPoolSize = rowsPerType
+        messageAdapter.prefillViews(rowsPerType)
+    }
+
+    /**
+     * Draw each text message row by one view.
+     * It has the same look, but there are fewer views to measure, lay out and draw.
+     * @param enabled true to use flat rows
+     */
+    fun setFlatBubbleEnabled(enabled: Boolean) {
+        attribute.isFlatBubbleEnabled = enabled
+        setAttribute()
+        messageAdapter.precomputeText(0, timeline.chatList.size)
     }
 
     fun setMessageFontSize(size: Float) {
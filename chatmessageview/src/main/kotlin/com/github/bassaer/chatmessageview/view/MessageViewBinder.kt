@@ -0,0 +1,686 @@
+package com.github.bassaer.chatmessageview.view
+
+import android.content.Context
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.PorterDuff
+import android.support.v4.content.ContextCompat
+import android.support.v4.view.ViewCompat
+import android.text.TextPaint
+import android.text.TextUtils
+import android.util.TypedValue
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import android.widget.FrameLayout
+import android.widget.ImageView
+import android.widget.TextView
+import com.github.bassaer.chatmessageview.R
+import com.github.bassaer.chatmessageview.model.DateSeparator
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.models.Attribute
+import com.github.bassaer.chatmessageview.util.TintedDrawableCache
+import de.hdodenhof.circleimageview.CircleImageView
+
+/**
+ * Creates and binds the rows of the chat timeline.
+ * Shared by the ListView and RecyclerView adapters.
+ *
+ * Each view type is a combination of renderer, side and status style,
+ * and all sub views of the row are inflated when the row is created.
+ * So binding a recycled row only sets values and visibilities.
+ */
+internal class MessageViewBinder(private val context: Context, var attribute: Attribute) {
+
+    private val layoutInflater = LayoutInflater.from(context)
+    lateinit var iconClickListener: Message.OnIconClickListener
+    lateinit var bubbleClickListener: Message.OnBubbleClickListener
+    lateinit var iconLongClickListener: Message.OnIconLongClickListener
+    lateinit var bubbleLongClickListener: Message.OnBubbleLongClickListener
+
+    var usernameTextColor = ContextCompat.getColor(context, R.color.blueGray500)
+    var sendTimeTextColor = ContextCompat.getColor(context, R.color.blueGray500)
+    var dateLabelColor = ContextCompat.getColor(context, R.color.blueGray500)
+    var rightMessageTextColor = Color.WHITE
+    var leftMessageTextColor = Color.BLACK
+    var leftBubbleColor = ContextCompat.getColor(context, R.color.default_left_bubble_color)
+    var rightBubbleColor = ContextCompat.getColor(context, R.color.default_right_bubble_color)
+    var statusColor = ContextCompat.getColor(context, R.color.blueGray500)
+    /**
+     * Default message item margin top
+     */
+    var messageTopMargin = 5
+    /**
+     * Default message item margin bottom
+     */
+    var messageBottomMargin = 5
+
+    /**
+     * Layouts of the text messages computed in advance
+     */
+    val textLayoutCache = TextLayoutCache(TEXT_LAYOUT_CACHE_SIZE)
+    /**
+     * Same paint as the text bubble
+     */
+    private val messageTextPaint = TextPaint(Paint.ANTI_ALIAS_FLAG).apply {
+        density = context.resources.displayMetrics.density
+    }
+    private val messageTextPadding = context.resources.getDimensionPixelSize(R.dimen.spacing_micro) * 2
+
+    /**
+     * Registered renderers. The index is used for view type.
+     */
+    private val renderers = ArrayList<MessageRenderer>()
+    private val typeRenderers = HashMap<Message.Type, Int>()
+    private val customTypeRenderers = HashMap<String, Int>()
+
+    /**
+     * Number of view types including date label
+     */
+    val viewTypeCount: Int
+        get() = MESSAGE_VIEW_TYPE_OFFSET + renderers.size * SIDE_COUNT * STATUS_COUNT
+
+    init {
+        registerRenderer(Message.Type.TEXT, TextRenderer())
+        registerRenderer(Message.Type.PICTURE, PictureRenderer())
+        registerRenderer(Message.Type.LINK, LinkRenderer())
+    }
+
+    /**
+     * Set renderer of the message type.
+     * View types of the previous renderer are not reused.
+     * @param type message type
+     * @param renderer renderer for the type
+     */
+    fun registerRenderer(type: Message.Type, renderer: MessageRenderer) {
+        renderers.add(renderer)
+        typeRenderers.put(type, renderers.size - 1)
+    }
+
+    /**
+     * Set renderer of the custom message type
+     * @param customType custom type of message
+     * @param renderer renderer for the custom type
+     */
+    fun registerRenderer(customType: String, renderer: MessageRenderer) {
+        renderers.add(renderer)
+        customTypeRenderers.put(customType, renderers.size - 1)
+    }
+
+    /**
+     * Return view type of the item
+     * @param item message or date label
+     * @return view type
+     */
+    fun getItemViewType(item: Any): Int {
+        if (item !is Message) {
+            return VIEW_TYPE_DATE
+        }
+        val rendererIndex = rendererIndexOf(item)
+        if (attribute.isFlatBubbleEnabled && renderers[rendererIndex] is TextRenderer) {
+            return if (item.isRightMessage) VIEW_TYPE_FLAT_RIGHT else VIEW_TYPE_FLAT_LEFT
+        }
+        val side = if (item.isRightMessage) 1 else 0
+        return MESSAGE_VIEW_TYPE_OFFSET + (rendererIndex * SIDE_COUNT + side) * STATUS_COUNT + statusStyleOf(item)
+    }
+
+    /**
+     * Return stable id of the item.
+     * Messages are identified by their arrival order, and date labels by their day.
+     * Ids of messages are positive, and ids of date labels are in negative ranges far from each other.
+     * @param item message or date label
+     * @return item id
+     */
+    fun getItemId(item: Any): Long = when (item) {
+        is Message -> {
+            // Messages in a list not managed by a timeline get their order here
+            item.assignSequence()
+            item.sequence
+        }
+        is DateSeparator -> DATE_ID_OFFSET + item.epochDay
+        else -> TEXT_LABEL_ID_OFFSET + item.hashCode()
+    }
+
+    /**
+     * Return view type of the row
+     * @param view row created by createView
+     * @return view type
+     */
+    fun getViewType(view: View): Int {
+        val holder = view.tag
+        return if (holder is MessageViewHolder) holder.viewType else VIEW_TYPE_DATE
+    }
+
+    /**
+     * Compute layouts of the text messages on the background thread.
+     * Newer messages are computed first, and at most the cache size.
+     * Only flat rows draw the cached layouts, so nothing is computed for bubble rows.
+     * The range is checked against the items, because an insert dispatched by DiffUtil
+     * is at a position of an intermediate list. Other rows are computed when they are bound.
+     * @param items items of the timeline
+     * @param position first position of the added items
+     * @param count number of the added items
+     */
+    fun precomputeText(items: List<Any>, position: Int, count: Int) {
+        if (!attribute.isFlatBubbleEnabled) {
+            return
+        }
+        val paint = getMessageTextPaint()
+        val width = attribute.messageMaxWidth - messageTextPadding
+        var remaining = TEXT_LAYOUT_CACHE_SIZE
+        for (i in Math.min(position + count, items.size) - 1 downTo position) {
+            val item = items[i]
+            if (item !is Message || renderers[rendererIndexOf(item)] !is TextRenderer) {
+                continue
+            }
+            item.messageText?.let { textLayoutCache.precompute(it, width, paint) }
+            if (--remaining == 0) {
+                return
+            }
+        }
+    }
+
+    private fun getMessageTextPaint(): TextPaint {
+        messageTextPaint.textSize = attribute.messageFontSize
+        return messageTextPaint
+    }
+
+    /**
+     * Return view types of the date label and the text messages of both sides.
+     * These rows are used by almost every timeline, so they are worth inflating in advance.
+     */
+    fun getCommonViewTypes(): IntArray {
+        if (attribute.isFlatBubbleEnabled) {
+            return intArrayOf(VIEW_TYPE_DATE, VIEW_TYPE_FLAT_LEFT, VIEW_TYPE_FLAT_RIGHT)
+        }
+        val textRenderer = typeRenderers[Message.Type.TEXT]!!
+        val viewTypes = IntArray(1 + SIDE_COUNT * STATUS_COUNT)
+        viewTypes[0] = VIEW_TYPE_DATE
+        for (i in 1 until viewTypes.size) {
+            viewTypes[i] = MESSAGE_VIEW_TYPE_OFFSET + textRenderer * SIDE_COUNT * STATUS_COUNT + (i - 1)
+        }
+        return viewTypes
+    }
+
+    /**
+     * Return inflater and renderers which can be used on the background thread.
+     * Renderers are copied, so that they can be registered while rows are inflated.
+     */
+    fun createBackgroundInflation(): BackgroundInflation =
+            BackgroundInflation(layoutInflater.cloneInContext(layoutInflater.context), ArrayList(renderers), textRenderer())
+
+    /**
+     * Inflate row of the view type with all of its sub views
+     * @param parent parent view, null if the row has no parent yet
+     * @param viewType view type returned by getItemViewType
+     * @return new row
+     */
+    fun createView(parent: ViewGroup?, viewType: Int): View =
+            createView(parent, viewType, layoutInflater, renderers, textRenderer())
+
+    /**
+     * Inflate row of the view type on the background thread
+     * @param viewType view type returned by getItemViewType
+     * @param inflation inflater and renderers returned by createBackgroundInflation
+     * @return new row without parent
+     */
+    fun createView(viewType: Int, inflation: BackgroundInflation): View =
+            createView(null, viewType, inflation.inflater, inflation.renderers, inflation.textRenderer)
+
+    private fun createView(parent: ViewGroup?, viewType: Int, inflater: LayoutInflater,
+                           renderers: List<MessageRenderer>, textRenderer: MessageRenderer): View {
+        return when (viewType) {
+            VIEW_TYPE_DATE -> createDateView(parent, inflater)
+            VIEW_TYPE_FLAT_LEFT, VIEW_TYPE_FLAT_RIGHT -> createFlatView(viewType, inflater, textRenderer)
+            else -> createMessageView(parent, viewType, inflater, renderers)
+        }
+    }
+
+    private fun textRenderer(): MessageRenderer = renderers[typeRenderers[Message.Type.TEXT]!!]
+
+    private fun createDateView(parent: ViewGroup?, layoutInflater: LayoutInflater): View {
+        val view = layoutInflater.inflate(R.layout.date_cell, parent, false)
+        val dateViewHolder = DateViewHolder()
+        dateViewHolder.dateLabelText = view.findViewById(R.id.dateLabelText)
+        view.tag = dateViewHolder
+        return view
+    }
+
+    /**
+     * Bind date label to the row
+     * @param view row created for VIEW_TYPE_DATE
+     * @param item DateSeparator of the timeline or label text
+     */
+    fun bindDateView(view: View, item: Any) {
+        val dateViewHolder = view.tag as DateViewHolder
+        // Label of DateSeparator is formatted here for the first time
+        dateViewHolder.dateLabelText?.text = if (item is DateSeparator) item.text else item.toString()
+        dateViewHolder.dateLabelText?.setTextColor(dateLabelColor)
+        dateViewHolder.dateLabelText?.setTextSize(TypedValue.COMPLEX_UNIT_PX, attribute.dateSeparatorFontSize)
+    }
+
+    private fun createMessageView(parent: ViewGroup?, viewType: Int, layoutInflater: LayoutInflater,
+                                  renderers: List<MessageRenderer>): View {
+        val statusStyle = (viewType - MESSAGE_VIEW_TYPE_OFFSET) % STATUS_COUNT
+        val isRightMessage = (viewType - MESSAGE_VIEW_TYPE_OFFSET) / STATUS_COUNT % SIDE_COUNT == 1
+        val renderer = renderers[(viewType - MESSAGE_VIEW_TYPE_OFFSET) / STATUS_COUNT / SIDE_COUNT]
+
+        val view = layoutInflater.inflate(
+                if (isRightMessage) R.layout.message_view_right else R.layout.message_view_left,
+                parent, false)
+        val messageViewHolder = MessageViewHolder(viewType, renderer)
+        messageViewHolder.iconContainer = view.findViewById(R.id.userIconContainer)
+        messageViewHolder.mainMessageContainer = view.findViewById(R.id.mainMessageContainer)
+        messageViewHolder.timeText = view.findViewById(R.id.timeLabelText)
+        messageViewHolder.usernameContainer = view.findViewById(R.id.usernameContainer)
+        messageViewHolder.statusContainer = view.findViewById(R.id.statusContainer)
+
+        layoutInflater.inflate(
+                if (isRightMessage) R.layout.user_name_right else R.layout.user_name_left,
+                messageViewHolder.usernameContainer).let {
+            messageViewHolder.username = it.findViewById(R.id.message_user_name)
+        }
+        layoutInflater.inflate(
+                if (isRightMessage) R.layout.user_icon_right else R.layout.user_icon_left,
+                messageViewHolder.iconContainer).let {
+            messageViewHolder.icon = it.findViewById(R.id.user_icon)
+        }
+
+        when (statusStyle) {
+            STATUS_ICON -> layoutInflater.inflate(R.layout.message_status_icon, messageViewHolder.statusContainer).let {
+                messageViewHolder.statusIcon = it.findViewById(R.id.status_icon_image_view)
+            }
+            STATUS_TEXT -> layoutInflater.inflate(R.layout.message_status_text, messageViewHolder.statusContainer).let {
+                messageViewHolder.statusText = it.findViewById(R.id.status_text_view)
+            }
+        }
+
+        messageViewHolder.mainMessageContainer?.let {
+            val contentView = renderer.createContentView(layoutInflater, it, isRightMessage)
+            it.addView(contentView)
+            messageViewHolder.contentView = contentView
+        }
+        if (renderer is TextRenderer || renderer is LinkRenderer) {
+            messageViewHolder.bubbleBackgroundId =
+                    if (isRightMessage) R.drawable.message_text_shape_right else R.drawable.message_text_shape_left
+        }
+
+        //Set bubble click listener
+        messageViewHolder.mainMessageContainer?.setOnClickListener {
+            messageViewHolder.message?.let { bubbleClickListener.onClick(it) }
+        }
+
+        //Set bubble long click listener
+        messageViewHolder.mainMessageContainer?.setOnLongClickListener {
+            messageViewHolder.message?.let { bubbleLongClickListener.onLongClick(it) }
+            true//ignore onclick event
+        }
+
+        //Set icon click listener
+        messageViewHolder.icon?.setOnClickListener {
+            messageViewHolder.message?.let {
+                if (it.isIconShown) {
+                    iconClickListener.onIconClick(it)
+                }
+            }
+        }
+
+        messageViewHolder.icon?.setOnLongClickListener {
+            messageViewHolder.message?.let {
+                if (it.isIconShown) {
+                    iconLongClickListener.onIconLongClick(it)
+                }
+            }
+            true
+        }
+
+        view.tag = messageViewHolder
+        return view
+    }
+
+    private fun createFlatView(viewType: Int, layoutInflater: LayoutInflater, textRenderer: MessageRenderer): View {
+        val view = FlatMessageView(layoutInflater.context, viewType == VIEW_TYPE_FLAT_RIGHT)
+        val messageViewHolder = MessageViewHolder(viewType, textRenderer)
+        messageViewHolder.contentView = view
+
+        view.setOnClickListener {
+            messageViewHolder.message?.let {
+                if (view.isIconTouched()) {
+                    iconClickListener.onIconClick(it)
+                } else if (view.isBubbleTouched()) {
+                    bubbleClickListener.onClick(it)
+                }
+            }
+        }
+
+        view.setOnLongClickListener {
+            messageViewHolder.message?.let {
+                if (view.isIconTouched()) {
+                    iconLongClickListener.onIconLongClick(it)
+                } else if (view.isBubbleTouched()) {
+                    bubbleLongClickListener.onLongClick(it)
+                }
+            }
+            true
+        }
+
+        view.tag = messageViewHolder
+        return view
+    }
+
+    /**
+     * Bind message to the row
+     * @param view row created for the view type of the message
+     * @param message message to show
+     */
+    fun bindMessageView(view: View, message: Message) {
+        val messageViewHolder = view.tag as MessageViewHolder
+        messageViewHolder.message = message
+        if (view is FlatMessageView) {
+            bindFlatView(view, message)
+            view.setPadding(0, messageTopMargin, 0, messageBottomMargin)
+            return
+        }
+        bindUser(messageViewHolder, message)
+        bindStatus(messageViewHolder, message)
+        bindContent(messageViewHolder, message)
+        bindTime(messageViewHolder, message)
+
+        //Set Padding
+        view.setPadding(0, messageTopMargin, 0, messageBottomMargin)
+    }
+
+    /**
+     * Bind only the changed part of the message to the row
+     * @param view row which the message is already bound to
+     * @param message changed message
+     * @param changeKind changed part
+     * @return false if the row can not show the message any more because its view type was changed
+     */
+    fun bindMessageChange(view: View, message: Message, changeKind: Message.ChangeKind): Boolean {
+        val messageViewHolder = view.tag as MessageViewHolder
+        if (messageViewHolder.viewType != getItemViewType(message)) {
+            return false
+        }
+        messageViewHolder.message = message
+        if (view is FlatMessageView) {
+            // Whole row is one view, so it is drawn again anyway
+            bindFlatView(view, message)
+            return true
+        }
+        when (changeKind) {
+            Message.ChangeKind.STATUS -> bindStatus(messageViewHolder, message)
+            Message.ChangeKind.TEXT, Message.ChangeKind.PICTURE -> bindContent(messageViewHolder, message)
+            Message.ChangeKind.USER -> bindUser(messageViewHolder, message)
+            Message.ChangeKind.TIME -> bindTime(messageViewHolder, message)
+            Message.ChangeKind.ALL -> bindMessageView(view, message)
+        }
+        return true
+    }
+
+    /**
+     * Bind send time again only if its text is changed
+     * @param view row which the message is already bound to
+     * @param message message of the row
+     * @return true if the text is changed
+     */
+    fun refreshTimeText(view: View, message: Message): Boolean {
+        val timeText = message.timeText
+        if (view is FlatMessageView) {
+            if (view.timeText == timeText) {
+                return false
+            }
+            bindFlatView(view, message)
+            return true
+        }
+        val timeTextView = (view.tag as MessageViewHolder).timeText ?: return false
+        if (TextUtils.equals(timeTextView.text, timeText)) {
+            return false
+        }
+        timeTextView.text = timeText
+        return true
+    }
+
+    /**
+     * Set all values of the message to the flat row
+     */
+    private fun bindFlatView(view: FlatMessageView, message: Message) {
+        val user = message.user
+        val statusStyle = statusStyleOf(message)
+        view.bubbleColor = if (message.isRightMessage) rightBubbleColor else leftBubbleColor
+        view.textColor = if (message.isRightMessage) rightMessageTextColor else leftMessageTextColor
+        view.statusColor = statusColor
+        view.usernamePaint.color = usernameTextColor
+        view.usernamePaint.textSize = attribute.usernameFontSize
+        view.timePaint.color = sendTimeTextColor
+        view.timePaint.textSize = attribute.timeLabelFontSize
+        view.setContent(
+                textLayoutCache.getOrCreate(message.messageText ?: "", attribute.messageMaxWidth - messageTextPadding, getMessageTextPaint()),
+                if (message.isUsernameShown) user.getName() else null,
+                message.timeText,
+                if (statusStyle == STATUS_TEXT) message.statusText else null,
+                if (statusStyle == STATUS_ICON) message.statusIcon else null,
+                user.getIcon(),
+                message.isIconShown,
+                !message.isIconHided
+        )
+    }
+
+    /**
+     * Show username and icon
+     */
+    private fun bindUser(messageViewHolder: MessageViewHolder, message: Message) {
+        val user = message.user
+
+        val username = user.getName()
+        if (username != null && message.isUsernameShown) {
+            messageViewHolder.usernameContainer?.visibility = View.VISIBLE
+            messageViewHolder.username?.text = username
+            messageViewHolder.username?.setTextColor(usernameTextColor)
+            messageViewHolder.username?.setTextSize(TypedValue.COMPLEX_UNIT_PX, attribute.usernameFontSize)
+        } else {
+            messageViewHolder.usernameContainer?.visibility = View.GONE
+        }
+
+        // if true, there is no icon space.
+        if (message.isIconHided) {
+            messageViewHolder.iconContainer?.visibility = View.GONE
+            return
+        }
+        messageViewHolder.iconContainer?.visibility = View.VISIBLE
+        if (message.isIconShown) {
+            messageViewHolder.icon?.visibility = View.VISIBLE
+            val icon = user.getIcon()
+            //if null, show default icon.
+            if (icon != null) {
+                messageViewHolder.icon?.setImageBitmap(icon)
+            } else {
+                messageViewHolder.icon?.setImageResource(R.drawable.ic_action_user)
+            }
+        } else {
+            //Show nothing
+            messageViewHolder.icon?.visibility = View.INVISIBLE
+        }
+    }
+
+    /**
+     * Show message status
+     */
+    private fun bindStatus(messageViewHolder: MessageViewHolder, message: Message) {
+        messageViewHolder.statusIcon?.let {
+            //Show message status icon
+            it.setImageDrawable(message.statusIcon)
+            if (messageViewHolder.statusIconColor != statusColor) {
+                it.setColorFilter(statusColor, PorterDuff.Mode.SRC_IN)
+                messageViewHolder.statusIconColor = statusColor
+            }
+        }
+        messageViewHolder.statusText?.let {
+            //Show message status text
+            it.text = message.statusText
+            it.setTextColor(statusColor)
+        }
+    }
+
+    /**
+     * Set text or picture on message bubble
+     */
+    private fun bindContent(messageViewHolder: MessageViewHolder, message: Message) {
+        val contentView = messageViewHolder.contentView ?: return
+        messageViewHolder.renderer.bindContentView(contentView, message)
+        if (messageViewHolder.bubbleBackgroundId != 0) {
+            // Background is replaced only when the color is changed
+            val color = if (message.isRightMessage) rightBubbleColor else leftBubbleColor
+            if (messageViewHolder.bubbleColor != color) {
+                ViewCompat.setBackground(contentView, TintedDrawableCache.get(context, messageViewHolder.bubbleBackgroundId, color))
+                messageViewHolder.bubbleColor = color
+            }
+        }
+    }
+
+    /**
+     * Show send time
+     */
+    private fun bindTime(messageViewHolder: MessageViewHolder, message: Message) {
+        messageViewHolder.timeText?.text = message.timeText
+        messageViewHolder.timeText?.setTextColor(sendTimeTextColor)
+        messageViewHolder.timeText?.setTextSize(TypedValue.COMPLEX_UNIT_PX, attribute.timeLabelFontSize)
+    }
+
+    /**
+     * Return renderer index of the message.
+     * Custom type is used if its renderer is registered, and message type
+     * which has no renderer such as map is shown as text.
+     */
+    private fun rendererIndexOf(message: Message): Int {
+        message.customType?.let { customType ->
+            customTypeRenderers[customType]?.let { return it }
+        }
+        return typeRenderers[message.type ?: Message.Type.TEXT] ?: typeRenderers[Message.Type.TEXT]!!
+    }
+
+    /**
+     * Return status style of the message considering which side it is shown
+     */
+    private fun statusStyleOf(message: Message): Int {
+        return when (message.messageStatusType) {
+            Message.MESSAGE_STATUS_ICON -> STATUS_ICON
+            Message.MESSAGE_STATUS_ICON_RIGHT_ONLY -> if (message.isRightMessage) STATUS_ICON else STATUS_NONE
+            Message.MESSAGE_STATUS_ICON_LEFT_ONLY -> if (message.isRightMessage) STATUS_NONE else STATUS_ICON
+            Message.MESSAGE_STATUS_TEXT -> STATUS_TEXT
+            Message.MESSAGE_STATUS_TEXT_RIGHT_ONLY -> if (message.isRightMessage) STATUS_TEXT else STATUS_NONE
+            Message.MESSAGE_STATUS_TEXT_LEFT_ONLY -> if (message.isRightMessage) STATUS_NONE else STATUS_TEXT
+            else -> STATUS_NONE
+        }
+    }
+
+    /**
+     * Text message
+     */
+    private inner class TextRenderer : MessageRenderer {
+        override fun createContentView(inflater: LayoutInflater, container: ViewGroup, isRightMessage: Boolean): View {
+            return inflater.inflate(
+                    if (isRightMessage) R.layout.message_text_right else R.layout.message_text_left,
+                    container, false)
+        }
+
+        override fun bindContentView(contentView: View, message: Message) {
+            val messageText = contentView as TextView
+            messageText.text = message.messageText
+            messageText.setTextColor(if (message.isRightMessage) rightMessageTextColor else leftMessageTextColor)
+            messageText.setTextSize(TypedValue.COMPLEX_UNIT_PX, attribute.messageFontSize)
+            messageText.maxWidth = attribute.messageMaxWidth
+        }
+    }
+
+    /**
+     * Picture message
+     */
+    private inner class PictureRenderer : MessageRenderer {
+        override fun createContentView(inflater: LayoutInflater, container: ViewGroup, isRightMessage: Boolean): View {
+            return inflater.inflate(
+                    if (isRightMessage) R.layout.message_picture_right else R.layout.message_picture_left,
+                    container, false)
+        }
+
+        override fun bindContentView(contentView: View, message: Message) {
+            (contentView as ImageView).setImageBitmap(message.picture)
+        }
+    }
+
+    /**
+     * Text message with links
+     */
+    private inner class LinkRenderer : MessageRenderer {
+        override fun createContentView(inflater: LayoutInflater, container: ViewGroup, isRightMessage: Boolean): View {
+            return inflater.inflate(
+                    if (isRightMessage) R.layout.message_link_right else R.layout.message_link_left,
+                    container, false)
+        }
+
+        override fun bindContentView(contentView: View, message: Message) {
+            val messageLink = contentView as TextView
+            messageLink.text = message.messageText
+            //Set message text color
+            messageLink.setTextColor(if (message.isRightMessage) rightMessageTextColor else leftMessageTextColor)
+        }
+    }
+
+    internal class MessageViewHolder(val viewType: Int, val renderer: MessageRenderer) {
+        var message: Message? = null
+        var icon: CircleImageView? = null
+        var iconContainer: FrameLayout? = null
+        var contentView: View? = null
+        var timeText: TextView? = null
+        var username: TextView? = null
+        var mainMessageContainer: FrameLayout? = null
+        var usernameContainer: FrameLayout? = null
+        var statusContainer: FrameLayout? = null
+        var statusIcon: ImageView? = null
+        var statusText: TextView? = null
+        /**
+         * Background resource of the bubble tinted by the binder, 0 if the renderer draws its own background
+         */
+        var bubbleBackgroundId = 0
+        var bubbleColor: Int? = null
+        var statusIconColor: Int? = null
+    }
+
+    internal class DateViewHolder {
+        var dateLabelText: TextView? = null
+    }
+
+    /**
+     * Inflater and renderers used to inflate rows on the background thread
+     */
+    internal class BackgroundInflation(
+            val inflater: LayoutInflater,
+            val renderers: List<MessageRenderer>,
+            val textRenderer: MessageRenderer
+    )
+
+    companion object {
+        const val VIEW_TYPE_DATE = 0
+        private const val VIEW_TYPE_FLAT_LEFT = 1
+        private const val VIEW_TYPE_FLAT_RIGHT = 2
+        private const val MESSAGE_VIEW_TYPE_OFFSET = 3
+
+        private const val SIDE_COUNT = 2
+
+        private const val STATUS_NONE = 0
+        private const val STATUS_ICON = 1
+        private const val STATUS_TEXT = 2
+        private const val STATUS_COUNT = 3
+
+        /**
+         * Ids of date labels are negative so that they differ from the ids of messages
+         */
+        private const val DATE_ID_OFFSET = Long.MIN_VALUE / 2
+        /**
+         * Ids of date labels given as text, far from the days of DateSeparator
+         */
+        private const val TEXT_LABEL_ID_OFFSET = Long.MIN_VALUE / 4
+
+        private const val TEXT_LAYOUT_CACHE_SIZE = 200
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.bassaer.chatmessageview.view
+
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.model.MessageTimeline
+
+/**
+ * Holds new messages for a short time, so that messages arriving out of order are
+ * shown in order instead of jumping after they are shown.
+ * Each message is held for the whole window from its arrival. The messages whose window
+ * ended are merged into the timeline at once, and a message arriving after newer ones
+ * are shown is inserted at its place as one row.
+ */
+internal class ReorderBuffer(private val timeline: MessageTimeline) {
+
+    /**
+     * Time to hold new messages in milliseconds. Messages are not held if it is 0.
+     */
+    var windowMillis = 0L
+
+    /**
+     * Held messages in the order of arrival
+     */
+    private val messages = ArrayList<Message>()
+    /**
+     * Time when each held message arrived, in the same order as messages
+     */
+    private val arrivalTimes = ArrayList<Long>()
+
+    val isEmpty: Boolean
+        get() = messages.isEmpty()
+
+    /**
+     * Hold the message for windowMillis from now
+     * @param message new message
+     * @param now current time in SystemClock.uptimeMillis
+     * @return true if it is the first held message and flush should be scheduled
+     */
+    fun hold(message: Message, now: Long): Boolean {
+        messages.add(message)
+        arrivalTimes.add(now)
+        return messages.size == 1
+    }
+
+    /**
+     * Remove the message if it is held
+     * @return true if it was held
+     */
+    fun remove(message: Message): Boolean {
+        val index = messages.indexOfFirst { it === message }
+        if (index < 0) {
+            return false
+        }
+        messages.removeAt(index)
+        arrivalTimes.removeAt(index)
+        return true
+    }
+
+    /**
+     * Remove the held messages matching the predicate
+     */
+    fun removeIf(predicate: (Message) -> Boolean) {
+        for (i in messages.indices.reversed()) {
+            if (predicate(messages[i])) {
+                messages.removeAt(i)
+                arrivalTimes.removeAt(i)
+            }
+        }
+    }
+
+    /**
+     * Return the held message of the id
+     */
+    fun findById(id: String): Message? = messages.firstOrNull { it.id == id }
+
+    /**
+     * Add the messages held for windowMillis to the timeline at once
+     * @param now current time in SystemClock.uptimeMillis
+     * @return time when the oldest message left should be added, or 0 if no message is left
+     */
+    fun flush(now: Long): Long {
+        var count = 0
+        while (count < messages.size && arrivalTimes[count] + windowMillis <= now) {
+            count++
+        }
+        addToTimeline(count)
+        return if (messages.isEmpty()) 0 else arrivalTimes[0] + windowMillis
+    }
+
+    /**
+     * Add all held messages to the timeline at once
+     */
+    fun flushAll() {
+        addToTimeline(messages.size)
+    }
+
+    fun clear() {
+        messages.clear()
+        arrivalTimes.clear()
+    }
+
+    /**
+     * Add the oldest held messages to the timeline
+     * @param count number of the messages
+     */
+    private fun addToTimeline(count: Int) {
+        when (count) {
+            0 -> return
+            1 -> timeline.add(messages[0])
+            else -> timeline.mergeSorted(ArrayList(messages.subList(0, count)))
+        }
+        messages.subList(0, count).clear()
+        arrivalTimes.subList(0, count).clear()
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.bassaer.chatmessageview.view
+
+import android.graphics.Typeface
+import android.text.Layout
+import android.text.StaticLayout
+import android.text.TextPaint
+import android.util.LruCache
+import com.github.bassaer.chatmessageview.util.ChatExecutor
+
+/**
+ * Text layouts of the flat message rows computed on the background thread.
+ * Building a layout measures every word of the text, so the flat row draws the cached
+ * layout instead of measuring the text when it is bound on the main thread.
+ * @param maxSize max number of cached layouts
+ */
+internal class TextLayoutCache(maxSize: Int) {
+
+    private val layouts = LruCache<Key, StaticLayout>(maxSize)
+
+    /**
+     * Return cached layout
+     * @param text message text
+     * @param width width of the text area
+     * @param paint paint of the text
+     * @return layout, null if it is not computed yet
+     */
+    fun get(text: CharSequence, width: Int, paint: TextPaint): StaticLayout? = layouts.get(Key.of(text, width, paint))
+
+    /**
+     * Return cached layout, or compute it on the current thread
+     * @param text message text
+     * @param width width of the text area
+     * @param paint paint of the text
+     * @return layout
+     */
+    fun getOrCreate(text: CharSequence, width: Int, paint: TextPaint): StaticLayout {
+        val key = Key.of(text, width, paint)
+        layouts.get(key)?.let { return it }
+        // Each layout has its own paint, because the color is set when it is drawn
+        val layout = createLayout(text, width, TextPaint(paint))
+        layouts.put(key, layout)
+        return layout
+    }
+
+    /**
+     * Compute layout on the background thread if it is not cached
+     * @param text message text
+     * @param width width of the text area
+     * @param paint paint of the text. It is copied, so it can be changed after this call.
+     */
+    fun precompute(text: CharSequence, width: Int, paint: TextPaint) {
+        if (width <= 0) {
+            return
+        }
+        val key = Key.of(text, width, paint)
+        if (layouts.get(key) != null) {
+            return
+        }
+        val backgroundPaint = TextPaint(paint)
+        ChatExecutor.execute {
+            if (layouts.get(key) == null) {
+                layouts.put(key, createLayout(text, width, backgroundPaint))
+            }
+        }
+    }
+
+    private fun createLayout(text: CharSequence, width: Int, paint: TextPaint): StaticLayout {
+        // Same spacing and padding as TextView
+        return StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true)
+    }
+
+    private data class Key(val text: String, val width: Int, val textSize: Float, val typeface: Typeface?) {
+        companion object {
+            fun of(text: CharSequence, width: Int, paint: TextPaint) = Key(text.toString(), width, paint.textSize, paint.typeface)
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.bassaer.chatmessageview.view
+
+import android.util.SparseArray
+import android.view.View
+import com.github.bassaer.chatmessageview.util.ChatExecutor
+
+/**
+ * Rows inflated on the background thread before the adapter needs them.
+ * The adapter takes a row from this pool first, and inflates a new one only when the pool is empty.
+ * All methods except the inflation itself are called on the main thread.
+ */
+internal class WarmViewPool(private val binder: MessageViewBinder) {
+
+    private val views = SparseArray<ArrayList<View>>()
+    /**
+     * Incremented when the pool is cleared, so rows inflated before that are dropped
+     */
+    private var generation = 0
+
+    /**
+     * Inflate rows on the background thread
+     * @param viewTypes view types to inflate
+     * @param rowsPerType number of rows for each view type
+     */
+    fun prefill(viewTypes: IntArray, rowsPerType: Int) {
+        if (rowsPerType <= 0) {
+            return
+        }
+        val requestedGeneration = generation
+        // Renderers are read on the main thread, since they can be registered while inflating
+        val inflation = binder.createBackgroundInflation()
+        ChatExecutor.execute {
+            for (viewType in viewTypes) {
+                for (i in 0 until rowsPerType) {
+                    val view = try {
+                        binder.createView(viewType, inflation)
+                    } catch (e: RuntimeException) {
+                        // Some views can not be created off the main thread,
+                        // those rows are inflated by the adapter as usual.
+                        return@execute
+                    }
+                    ChatExecutor.post {
+                        if (requestedGeneration == generation) {
+                            put(viewType, view)
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the row of the view type
+     * @param viewType view type
+     * @return pre-inflated row, null if there is no row
+     */
+    fun take(viewType: Int): View? {
+        val list = views[viewType] ?: return null
+        return if (list.isEmpty()) null else list.removeAt(list.size - 1)
+    }
+
+    /**
+     * Drop all rows including the ones being inflated, so that they do not keep the context
+     */
+    fun clear() {
+        generation++
+        views.clear()
+    }
+
+    private fun put(viewType: Int, view: View) {
+        var list = views[viewType]
+        if (list == null) {
+            list = ArrayList()
+            views.put(viewType, list)
+        }
+        list.add(view)
+    }
+}
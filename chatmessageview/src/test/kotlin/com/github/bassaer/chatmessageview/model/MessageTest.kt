@@ -0,0 +1,63 @@
+package com.github.bassaer.chatmessageview.model
+
+import com.github.bassaer.chatmessageview.util.RelativeTimeFormatter
+import com.github.bassaer.chatmessageview.util.TimeUtils
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.*
+
+/**
+ * <p>Message test</p>
+ */
+internal class MessageTest {
+
+    @Test
+    fun timeTextFormattedOnce() {
+        val formatter = CountingFormatter()
+        val message = Message.Builder()
+                .setCreatedAt(System.currentTimeMillis() - 5 * MINUTE - SECOND)
+                .setSendTimeFormatter(formatter)
+                .build()
+
+        assertEquals("5 min ago", message.timeText)
+        assertEquals("5 min ago", message.timeText)
+        assertEquals(1, formatter.count)
+
+        message.setSendTimeFormatter(formatter)
+        assertEquals("5 min ago", message.timeText)
+        assertEquals(2, formatter.count)
+    }
+
+    @Test
+    fun dateTextFormattedAgainForTimeZone() {
+        val defaultTimeZone = TimeZone.getDefault()
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("UTC"))
+            TimeUtils.checkDefaultsChanged()
+            val message = Message.Builder().setCreatedAt(0L).build()
+            assertEquals("Jan. 01, 1970", message.dateSeparateText)
+
+            TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"))
+            assertEquals("Jan. 01, 1970", message.dateSeparateText)
+            TimeUtils.checkDefaultsChanged()
+            assertEquals("Dec. 31, 1969", message.dateSeparateText)
+        } finally {
+            TimeZone.setDefault(defaultTimeZone)
+            TimeUtils.checkDefaultsChanged()
+        }
+    }
+
+    private class CountingFormatter : RelativeTimeFormatter() {
+        var count = 0
+
+        override fun getFormattedTimeText(createdAt: Long, now: Long): String {
+            count++
+            return super.getFormattedTimeText(createdAt, now)
+        }
+    }
+
+    companion object {
+        private const val SECOND = 1000L
+        private const val MINUTE = 60 * SECOND
+    }
+}
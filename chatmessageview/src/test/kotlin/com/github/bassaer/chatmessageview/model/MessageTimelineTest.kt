@@ -0,0 +1,508 @@
+package com.github.bassaer.chatmessageview.model
+
+import android.graphics.Bitmap
+import android.support.v7.util.ListUpdateCallback
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Before
+import org.junit.Test
+import java.util.*
+
+/**
+ * <p>MessageTimeline test</p>
+ */
+internal class MessageTimelineTest {
+    private lateinit var timeline: MessageTimeline
+    private lateinit var updates: MutableList<String>
+
+    @Before
+    fun setUp() {
+        timeline = MessageTimeline()
+        updates = ArrayList()
+        timeline.updateCallback = object : ListUpdateCallback {
+            override fun onInserted(position: Int, count: Int) {
+                updates.add("insert $position $count")
+            }
+
+            override fun onRemoved(position: Int, count: Int) {
+                updates.add("remove $position $count")
+            }
+
+            override fun onMoved(fromPosition: Int, toPosition: Int) {
+                updates.add("move $fromPosition $toPosition")
+            }
+
+            override fun onChanged(position: Int, count: Int, payload: Any?) {
+                updates.add("change $position $count $payload")
+            }
+        }
+    }
+
+    @Test
+    fun sortAndSeparate() {
+        val second = createMessage(2017, 10, 12, 9)
+        val first = createMessage(2017, 10, 11, 10)
+        val third = createMessage(2017, 10, 12, 8)
+        timeline.setMessages(listOf(second, first, third))
+
+        assertEquals(listOf(first, third, second), timeline.messageList)
+        assertEquals(5, timeline.chatList.size)
+        assertEquals(separatorOf(first), timeline.chatList[0])
+        assertSame(first, timeline.chatList[1])
+        assertEquals(separatorOf(third), timeline.chatList[2])
+        assertSame(third, timeline.chatList[3])
+        assertSame(second, timeline.chatList[4])
+    }
+
+    @Test
+    fun appendNotifiesOneRow() {
+        timeline.setMessages(listOf(createMessage(2017, 10, 11, 10), createMessage(2017, 10, 11, 11)))
+        updates.clear()
+
+        timeline.add(createMessage(2017, 10, 11, 12))
+
+        assertEquals(listOf("insert 3 1"), updates)
+    }
+
+    @Test
+    fun insertOlderMessage() {
+        val first = createMessage(2017, 10, 11, 10)
+        val third = createMessage(2017, 10, 12, 10)
+        timeline.setMessages(listOf(first, third))
+        updates.clear()
+
+        // Same day as the next message, the existing date label is used
+        val second = createMessage(2017, 10, 12, 9)
+        timeline.add(second)
+        assertEquals(listOf("insert 3 1"), updates)
+        assertEquals(listOf(first, second, third), timeline.messageList)
+        assertSame(second, timeline.chatList[3])
+
+        // New day between existing days
+        updates.clear()
+        val middle = createMessage(2017, 10, 11, 23)
+        timeline.add(middle)
+        assertEquals(listOf("insert 2 1"), updates)
+        val oldest = createMessage(2017, 10, 10, 9)
+        timeline.add(oldest)
+        assertEquals(listOf("insert 2 1", "insert 0 2"), updates)
+        assertEquals(listOf<Any>(
+                separatorOf(oldest), oldest,
+                separatorOf(first), first, middle,
+                separatorOf(third), second, third
+        ), timeline.chatList)
+    }
+
+    @Test
+    fun insertSameTimeKeepsArrivalOrder() {
+        val calendar = Calendar.getInstance()
+        val first = Message.Builder().setCreatedAt(calendar).build()
+        val second = Message.Builder().setCreatedAt(calendar).build()
+        timeline.add(first)
+        timeline.add(second)
+        assertEquals(listOf(first, second), timeline.messageList)
+    }
+
+    @Test
+    fun sameTimeKeepsOrderAfterRebuild() {
+        val calendar = Calendar.getInstance()
+        val messages = (0 until 3).map { Message.Builder().setCreatedAt(calendar).build() }
+        messages.forEach { timeline.add(it) }
+
+        timeline.setMessages(messages.reversed())
+        assertEquals(messages, timeline.messageList)
+    }
+
+    @Test
+    fun removeLastMessageOfDay() {
+        val first = createMessage(2017, 10, 11, 10)
+        val second = createMessage(2017, 10, 12, 10)
+        timeline.setMessages(listOf(first, second))
+        updates.clear()
+
+        timeline.remove(second)
+
+        assertEquals(listOf("remove 2 2"), updates)
+        assertEquals(listOf<Any>(separatorOf(first), first), timeline.chatList)
+    }
+
+    @Test
+    fun updateNotifiesChangedPart() {
+        val first = createMessage(2017, 10, 11, 10)
+        val second = createMessage(2017, 10, 11, 11)
+        timeline.setMessages(listOf(first, second))
+        updates.clear()
+
+        timeline.update(second, Message.ChangeKind.STATUS)
+        timeline.update(first, Message.ChangeKind.ALL)
+
+        assertEquals(listOf("change 2 1 STATUS", "change 1 1 null"), updates)
+    }
+
+    @Test
+    fun addOlderSharesDateLabel() {
+        val current = createMessage(2017, 10, 12, 10)
+        timeline.setMessages(listOf(current))
+        updates.clear()
+
+        val older = createMessage(2017, 10, 11, 10)
+        val sameDay = createMessage(2017, 10, 12, 9)
+        timeline.addOlder(listOf(sameDay, older))
+
+        assertEquals(listOf("insert 1 1", "insert 0 2"), updates)
+        assertEquals(listOf<Any>(
+                separatorOf(older), older,
+                separatorOf(current), sameDay, current
+        ), timeline.chatList)
+        assertEquals(listOf(older, sameDay, current), timeline.messageList)
+    }
+
+    @Test
+    fun addNewerSharesDateLabel() {
+        val current = createMessage(2017, 10, 11, 10)
+        timeline.setMessages(listOf(current))
+        updates.clear()
+
+        val sameDay = createMessage(2017, 10, 11, 11)
+        val newer = createMessage(2017, 10, 12, 10)
+        timeline.addNewer(listOf(newer, sameDay))
+
+        assertEquals(listOf("insert 2 3"), updates)
+        assertEquals(listOf<Any>(
+                separatorOf(current), current, sameDay,
+                separatorOf(newer), newer
+        ), timeline.chatList)
+    }
+
+    @Test
+    fun mergeSortedPageInsertsOnce() {
+        val current = createMessage(2017, 10, 12, 10)
+        timeline.setMessages(listOf(current))
+        updates.clear()
+
+        val first = createMessage(2017, 10, 10, 10)
+        val second = createMessage(2017, 10, 11, 10)
+        timeline.mergeSorted(listOf(first, second))
+
+        assertEquals(listOf("insert 0 4"), updates)
+        assertEquals(listOf(first, second, current), timeline.messageList)
+    }
+
+    @Test
+    fun mergeSortedKeepsShownRows() {
+        val first = createMessage(2017, 10, 11, 10)
+        val third = createMessage(2017, 10, 12, 10)
+        timeline.setMessages(listOf(first, third))
+        val label = timeline.chatList[2]
+        updates.clear()
+
+        val second = createMessage(2017, 10, 11, 11)
+        val sameDay = createMessage(2017, 10, 12, 9)
+        val newer = createMessage(2017, 10, 13, 10)
+        timeline.mergeSorted(listOf(newer, second, sameDay))
+
+        assertEquals(listOf("insert 2 1", "insert 4 1", "insert 6 2"), updates)
+        assertEquals(listOf<Any>(
+                separatorOf(first), first, second,
+                separatorOf(third), sameDay, third,
+                separatorOf(newer), newer
+        ), timeline.chatList)
+        assertSame(label, timeline.chatList[3])
+        assertEquals(listOf(first, second, sameDay, third, newer), timeline.messageList)
+    }
+
+    @Test
+    fun removeOldestAndNewest() {
+        val first = createMessage(2017, 10, 11, 10)
+        val second = createMessage(2017, 10, 12, 9)
+        val third = createMessage(2017, 10, 12, 10)
+        val fourth = createMessage(2017, 10, 13, 10)
+        timeline.setMessages(listOf(first, second, third, fourth))
+        updates.clear()
+
+        // The date label of the 12th is kept for the third message
+        timeline.removeOldest(2)
+        assertEquals(listOf("remove 3 1", "remove 0 2"), updates)
+        assertEquals(listOf<Any>(separatorOf(third), third, separatorOf(fourth), fourth), timeline.chatList)
+
+        updates.clear()
+        timeline.removeNewest(1)
+        assertEquals(listOf("remove 2 2"), updates)
+        assertEquals(listOf<Any>(separatorOf(third), third), timeline.chatList)
+        assertEquals(listOf(third), timeline.messageList)
+    }
+
+    @Test
+    fun batchAppendsOnce() {
+        val current = createMessage(2017, 10, 11, 10)
+        timeline.setMessages(listOf(current))
+        updates.clear()
+
+        val second = createMessage(2017, 10, 11, 11)
+        val third = createMessage(2017, 10, 11, 12)
+        timeline.beginUpdate()
+        timeline.add(third)
+        timeline.add(second)
+        timeline.update(current, Message.ChangeKind.STATUS)
+        timeline.update(third, Message.ChangeKind.STATUS)
+        assertEquals(listOf<String>(), updates)
+        timeline.endUpdate()
+
+        assertEquals(listOf("insert 2 2", "change 1 1 STATUS"), updates)
+        assertEquals(listOf(current, second, third), timeline.messageList)
+    }
+
+    @Test
+    fun batchRebuildsOnce() {
+        val first = createMessage(2017, 10, 11, 10)
+        val second = createMessage(2017, 10, 12, 10)
+        timeline.setMessages(listOf(first, second))
+        updates.clear()
+
+        val older = createMessage(2017, 10, 10, 10)
+        val canceled = createMessage(2017, 10, 11, 11)
+        timeline.beginUpdate()
+        timeline.beginUpdate()
+        timeline.remove(second)
+        timeline.add(canceled)
+        timeline.endUpdate()
+        timeline.add(older)
+        timeline.remove(canceled)
+        assertEquals(listOf<String>(), updates)
+        timeline.endUpdate()
+
+        assertEquals(listOf<Any>(separatorOf(older), older, separatorOf(first), first), timeline.chatList)
+        assertEquals(listOf(older, first), timeline.messageList)
+        assertEquals(false, timeline.isInUpdate)
+    }
+
+    @Test
+    fun groupSameSender() {
+        val first = createMessage(2017, 10, 11, 10, "a")
+        val second = createMessage(2017, 10, 11, 11, "b")
+        val third = createMessage(2017, 10, 11, 12, "a")
+        val nextDay = createMessage(2017, 10, 12, 10, "a")
+        timeline.setMessages(listOf(first, second, third, nextDay))
+        assertEquals(false, third.isSameSenderAsPrevious)
+        assertEquals(false, nextDay.isSameSenderAsPrevious)
+        updates.clear()
+
+        timeline.remove(second)
+        assertEquals(listOf("remove 2 1", "change 2 1 USER"), updates)
+        assertEquals(true, third.isSameSenderAsPrevious)
+        assertEquals(false, third.isIconShown)
+
+        updates.clear()
+        timeline.add(createMessage(2017, 10, 11, 11, "b"))
+        assertEquals(listOf("insert 2 1", "change 3 1 USER"), updates)
+        assertEquals(false, third.isSameSenderAsPrevious)
+        assertEquals(true, third.isUsernameShown)
+    }
+
+    @Test
+    fun separatorKeyedByDay() {
+        val first = createMessage(2017, 10, 11, 0)
+        val second = createMessage(2017, 10, 11, 23)
+        val third = createMessage(2017, 10, 12, 0)
+        timeline.setMessages(listOf(first, second, third))
+
+        val firstSeparator = timeline.chatList[0] as DateSeparator
+        val secondSeparator = timeline.chatList[3] as DateSeparator
+        assertEquals(1, secondSeparator.epochDay - firstSeparator.epochDay)
+        assertEquals(first.dateSeparateText, firstSeparator.text)
+        assertEquals(third.dateSeparateText, secondSeparator.text)
+    }
+
+    @Test
+    fun findUpdateAndRemoveById() {
+        val first = createMessage(2017, 10, 11, 10)
+        first.id = "first"
+        val second = createMessage(2017, 10, 11, 11)
+        second.id = "second"
+        timeline.setMessages(listOf(first, second))
+        updates.clear()
+
+        assertSame(second, timeline.findById("second"))
+        assertEquals(true, timeline.updateById("first", Message.ChangeKind.TEXT))
+        assertEquals(false, timeline.updateById("unknown", Message.ChangeKind.TEXT))
+        assertSame(first, timeline.removeById("first"))
+
+        assertEquals(listOf("change 1 1 TEXT", "remove 1 1"), updates)
+        assertEquals(null, timeline.findById("first"))
+        assertEquals(listOf(second), timeline.messageList)
+    }
+
+    @Test
+    fun removeIfCompactsOnce() {
+        val first = createMessage(2017, 10, 11, 10, "a")
+        val second = createMessage(2017, 10, 11, 11, "b")
+        val third = createMessage(2017, 10, 11, 12, "a")
+        val fourth = createMessage(2017, 10, 12, 10, "b")
+        timeline.setMessages(listOf(first, second, third, fourth))
+        updates.clear()
+
+        assertEquals(2, timeline.removeIf { it.user.getId() == "b" })
+
+        assertEquals(listOf("remove 2 1", "change 2 1 USER", "remove 3 2"), updates)
+        assertEquals(listOf<Any>(separatorOf(first), first, third), timeline.chatList)
+        assertEquals(true, third.isSameSenderAsPrevious)
+    }
+
+    @Test
+    fun removeRangeAndIds() {
+        val messages = (10 until 14).map { createMessage(2017, 10, 11, it) }
+        messages[3].id = "last"
+        timeline.setMessages(messages)
+        updates.clear()
+
+        assertEquals(2, timeline.removeRange(0, 2))
+        assertEquals(1, timeline.removeAll(listOf("last", "unknown")))
+
+        assertEquals(listOf("remove 1 2", "remove 2 1"), updates)
+        assertEquals(listOf(messages[2]), timeline.messageList)
+        assertEquals(null, timeline.findById("last"))
+    }
+
+    @Test
+    fun prepareAndPublish() {
+        val current = createMessage(2017, 10, 10, 10)
+        timeline.setMessages(listOf(current))
+        updates.clear()
+
+        val first = createMessage(2017, 10, 11, 10, "a")
+        val second = createMessage(2017, 10, 11, 11, "a")
+        second.id = "second"
+        timeline.startLoad()
+        val prepared = timeline.prepare(listOf(second, first))
+        assertEquals(listOf(current), timeline.messageList)
+        assertEquals(listOf<String>(), updates)
+        // Messages are changed only by publish on the main thread
+        assertEquals(0L, first.sequence)
+        assertEquals(false, second.isSameSenderAsPrevious)
+
+        assertEquals(true, timeline.publish(prepared))
+        assertEquals(listOf("remove 0 2", "insert 0 3"), updates)
+        assertEquals(listOf<Any>(separatorOf(first), first, second), timeline.chatList)
+        assertEquals(true, second.isSameSenderAsPrevious)
+        assertSame(second, timeline.findById("second"))
+    }
+
+    @Test
+    fun publishAppliesChangesWhileLoading() {
+        val removed = createMessage(2017, 10, 10, 10)
+        val kept = createMessage(2017, 10, 10, 11)
+        timeline.setMessages(listOf(removed, kept))
+
+        timeline.startLoad()
+        val loaded = createMessage(2017, 10, 11, 10)
+        loaded.id = "loaded"
+        val prepared = timeline.prepare(listOf(loaded, kept))
+        val added = createMessage(2017, 10, 11, 11)
+        timeline.add(added)
+        timeline.remove(removed)
+        timeline.removeById("loaded")
+        updates.clear()
+
+        timeline.publish(prepared)
+        assertEquals(listOf(kept, added), timeline.messageList)
+        assertEquals(listOf<Any>(separatorOf(kept), kept, separatorOf(added), added), timeline.chatList)
+        assertLabelsReferToFirstMessages()
+        assertEquals(null, timeline.findById("loaded"))
+    }
+
+    @Test
+    fun publishAppliesBatchWhileLoadingOnce() {
+        timeline.startLoad()
+        val loaded = createMessage(2017, 10, 11, 10)
+        val prepared = timeline.prepare(listOf(loaded))
+        val sent = createMessage(2017, 10, 11, 11)
+        timeline.beginUpdate()
+        timeline.add(sent)
+        timeline.update(sent, Message.ChangeKind.STATUS)
+        timeline.endUpdate()
+
+        timeline.publish(prepared)
+        assertEquals(listOf(loaded, sent), timeline.messageList)
+        assertEquals(listOf<Any>(separatorOf(loaded), loaded, sent), timeline.chatList)
+    }
+
+    @Test
+    fun publishAfterAllMessagesRemovedWhileLoading() {
+        val removed = createMessage(2017, 10, 10, 10)
+        timeline.setMessages(listOf(removed))
+        timeline.startLoad()
+        val loaded = createMessage(2017, 10, 11, 10)
+        val prepared = timeline.prepare(listOf(removed, loaded))
+        timeline.removeOldest(1)
+
+        assertEquals(true, timeline.publish(prepared))
+        assertEquals(listOf(loaded), timeline.messageList)
+    }
+
+    @Test
+    fun publishIgnoredAfterSetMessages() {
+        timeline.startLoad()
+        val prepared = timeline.prepare(listOf(createMessage(2017, 10, 11, 10)))
+        val message = createMessage(2017, 10, 12, 10)
+        timeline.setMessages(listOf(message))
+
+        assertEquals(false, timeline.publish(prepared))
+        assertEquals(listOf(message), timeline.messageList)
+    }
+
+    @Test
+    fun labelKeepsOnlyFirstMessageOfDay() {
+        val first = createMessage(2017, 10, 11, 10)
+        val second = createMessage(2017, 10, 11, 11)
+        val third = createMessage(2017, 10, 11, 12)
+        val nextDay = createMessage(2017, 10, 12, 10)
+        timeline.setMessages(listOf(first, second, third, nextDay))
+
+        val earliest = createMessage(2017, 10, 11, 9)
+        timeline.add(earliest)
+        assertLabelsReferToFirstMessages()
+        timeline.remove(earliest)
+        assertLabelsReferToFirstMessages()
+        timeline.removeOldest(1)
+        assertLabelsReferToFirstMessages()
+        timeline.removeIf { it === second }
+        assertLabelsReferToFirstMessages()
+        timeline.mergeSorted(listOf(createMessage(2017, 10, 11, 8), createMessage(2017, 10, 12, 9)))
+        assertLabelsReferToFirstMessages()
+        timeline.addOlder(listOf(createMessage(2017, 10, 11, 7)))
+        assertLabelsReferToFirstMessages()
+    }
+
+    /**
+     * Removed messages must not be kept by the date labels
+     */
+    private fun assertLabelsReferToFirstMessages() {
+        for (i in timeline.chatList.indices) {
+            val label = timeline.chatList[i] as? DateSeparator ?: continue
+            assertSame(timeline.chatList[i + 1], label.message)
+        }
+    }
+
+    private fun separatorOf(message: Message) = DateSeparator(message.epochDay, message)
+
+    private fun createMessage(year: Int, month: Int, day: Int, hour: Int, userId: String? = null): Message {
+        val calendar = Calendar.getInstance()
+        calendar.set(year, month, day, hour, 0, 0)
+        val builder = Message.Builder().setCreatedAt(calendar)
+        if (userId != null) {
+            builder.setUser(TestUser(userId))
+        }
+        return builder.build()
+    }
+
+    private class TestUser(private val id: String) : IChatUser {
+        override fun getId(): String = id
+
+        override fun getName(): String? = id
+
+        override fun getIcon(): Bitmap? = null
+
+        override fun setIcon(bmp: Bitmap) {
+        }
+    }
+}
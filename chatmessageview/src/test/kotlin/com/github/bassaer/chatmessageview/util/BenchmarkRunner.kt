@@ -0,0 +1,31 @@
+package com.github.bassaer.chatmessageview.util
+
+import org.openjdk.jmh.results.RunResult
+import org.openjdk.jmh.results.format.ResultFormatType
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.OptionsBuilder
+import java.io.File
+
+/**
+ * Runs JMH benchmarks from the unit tests.
+ * The results are printed by JMH, and written as JSON to build/reports/jmh.
+ */
+internal object BenchmarkRunner {
+
+    private const val REPORT_DIR = "build/reports/jmh"
+
+    /**
+     * Run all benchmarks of the class
+     * @param benchmarkClass class which has the benchmark methods
+     * @return result of each benchmark method
+     */
+    fun run(benchmarkClass: Class<*>): Collection<RunResult> {
+        File(REPORT_DIR).mkdirs()
+        val options = OptionsBuilder()
+                .include(benchmarkClass.name)
+                .result(REPORT_DIR + "/" + benchmarkClass.simpleName + ".json")
+                .resultFormat(ResultFormatType.JSON)
+                .build()
+        return Runner(options).run()
+    }
+}
@@ -2,6 +2,7 @@ package com.github.bassaer.chatmessageview.util
 
 
 import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.model.MessageTimeline
 import org.junit.Assert.assertEquals
 import org.junit.Test
 import java.util.*
@@ -57,4 +58,15 @@ internal class MessageDateComparatorTest {
         assertEquals(messageDateComparator.compare(newMessage, oldMessage), 0)
     }
 
-}
\ No newline at end of file
+    @Test
+    fun compareSameTimeByArrival() {
+        val first = Message.Builder().setCreatedAt(1000L).build()
+        val second = Message.Builder().setCreatedAt(1000L).build()
+        val timeline = MessageTimeline()
+        timeline.add(second)
+        timeline.add(first)
+        assertEquals(messageDateComparator.compare(second, first), -1)
+        assertEquals(messageDateComparator.compare(first, second), 1)
+        assertEquals(messageDateComparator.compare(first, first), 0)
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.bassaer.chatmessageview.util
+
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.model.MessageTimeline
+import org.openjdk.jmh.annotations.*
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares the sort cost of the Calendar comparison and the primitive comparison.
+ * Each benchmark sorts a copy of the shuffled messages. Run by MessageSortBenchmarkTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+open class MessageSortBenchmark {
+
+    @JvmField
+    @Param("10000", "100000")
+    var count = 0
+
+    private lateinit var messages: List<Message>
+    private val calendarComparator = CalendarComparator()
+    private val primitiveComparator = MessageDateComparator()
+
+    @Setup
+    fun setUp() {
+        val random = Random(0)
+        val messages = ArrayList<Message>(count)
+        for (i in 0 until count) {
+            // Some messages are sent at the same time
+            messages.add(Message.Builder().setCreatedAt(BASE_TIME + random.nextInt(count) * 1000L).build())
+        }
+        // Assign arrival order
+        MessageTimeline().setMessages(messages)
+        Collections.shuffle(messages, random)
+        // Calendars of the messages are created before measuring
+        messages.forEach { it.createdAt }
+        this.messages = messages
+    }
+
+    @Benchmark
+    fun sortByCalendar(): List<Message> = sort(calendarComparator)
+
+    @Benchmark
+    fun sortByPrimitive(): List<Message> = sort(primitiveComparator)
+
+    private fun sort(comparator: Comparator<Message>): List<Message> {
+        val list = ArrayList(messages)
+        Collections.sort(list, comparator)
+        return list
+    }
+
+    /**
+     * Comparison used before the primitive ordering key
+     */
+    private class CalendarComparator : Comparator<Message> {
+        override fun compare(first: Message, second: Message): Int {
+            if (first.createdAt.before(second.createdAt)) {
+                return -1
+            }
+            return if (first.createdAt.after(second.createdAt)) 1 else 0
+        }
+    }
+
+    companion object {
+        private const val BASE_TIME = 1510400000000L
+    }
+}
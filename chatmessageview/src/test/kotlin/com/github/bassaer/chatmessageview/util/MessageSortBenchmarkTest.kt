@@ -0,0 +1,30 @@
+package com.github.bassaer.chatmessageview.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Runs MessageSortBenchmark with JMH.
+ * It is skipped unless the benchmark system property is set:
+ * ./gradlew test -Dbenchmark=true
+ */
+internal class MessageSortBenchmarkTest {
+
+    @Before
+    fun setUp() {
+        assumeTrue(System.getProperty("benchmark") != null)
+    }
+
+    @Test
+    fun compareComparators() {
+        val benchmark = MessageSortBenchmark()
+        benchmark.count = 1000
+        benchmark.setUp()
+        assertEquals(benchmark.sortByPrimitive().map { it.createdAtMillis }, benchmark.sortByCalendar().map { it.createdAtMillis })
+
+        // Each method runs with 10k and 100k messages
+        assertEquals(4, BenchmarkRunner.run(MessageSortBenchmark::class.java).size)
+    }
+}
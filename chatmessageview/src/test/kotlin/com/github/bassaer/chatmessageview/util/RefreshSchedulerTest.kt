@@ -0,0 +1,86 @@
+package com.github.bassaer.chatmessageview.util
+
+import android.os.SystemClock
+import com.github.bassaer.chatmessageview.BuildConfig
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLooper
+
+/**
+ * RefreshScheduler Unit Test
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+internal class RefreshSchedulerTest {
+
+    @Test
+    fun refreshEachClientAtItsTime() {
+        val fast = CountingClient()
+        val slow = CountingClient()
+        val now = SystemClock.uptimeMillis()
+        RefreshScheduler.scheduleAt(fast, now + 1000)
+        RefreshScheduler.scheduleAt(slow, now + 3000)
+
+        ShadowLooper.idleMainLooper(999)
+        assertEquals(0, fast.count)
+        ShadowLooper.idleMainLooper(1)
+        assertEquals(1, fast.count)
+        assertEquals(0, slow.count)
+        ShadowLooper.idleMainLooper(2000)
+        assertEquals(1, fast.count)
+        assertEquals(1, slow.count)
+    }
+
+    @Test
+    fun scheduleAgainReplacesTime() {
+        val client = CountingClient()
+        val now = SystemClock.uptimeMillis()
+        RefreshScheduler.scheduleAt(client, now + 500)
+        RefreshScheduler.scheduleAt(client, now + 2000)
+
+        ShadowLooper.idleMainLooper(1000)
+        assertEquals(0, client.count)
+        ShadowLooper.idleMainLooper(1000)
+        assertEquals(1, client.count)
+        ShadowLooper.idleMainLooper(5000)
+        assertEquals(1, client.count)
+    }
+
+    @Test
+    fun stopRefreshing() {
+        val client = CountingClient()
+        RefreshScheduler.scheduleAt(client, SystemClock.uptimeMillis() + 1000)
+        RefreshScheduler.stop(client)
+
+        ShadowLooper.idleMainLooper(5000)
+        assertEquals(0, client.count)
+    }
+
+    @Test
+    fun scheduleNextTimeWhileRefreshing() {
+        val client = object : RefreshScheduler.Client {
+            var count = 0
+
+            override fun onRefresh() {
+                if (++count < 3) {
+                    RefreshScheduler.scheduleAt(this, SystemClock.uptimeMillis() + 1000)
+                }
+            }
+        }
+        RefreshScheduler.scheduleAt(client, SystemClock.uptimeMillis() + 1000)
+
+        ShadowLooper.idleMainLooper(10000)
+        assertEquals(3, client.count)
+    }
+
+    private class CountingClient : RefreshScheduler.Client {
+        var count = 0
+
+        override fun onRefresh() {
+            count++
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.bassaer.chatmessageview.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.*
+
+/**
+ * RelativeTimeFormatter Unit Test
+ */
+internal class RelativeTimeFormatterTest {
+    private val formatter = RelativeTimeFormatter()
+
+    @Test
+    fun getFormattedTimeText() {
+        val created = createCalendar(2017, 10, 11, 10, 0).timeInMillis
+
+        assertEquals("just now", formatter.getFormattedTimeText(created, created + 59 * SECOND))
+        assertEquals("5 min ago", formatter.getFormattedTimeText(created, created + 5 * MINUTE))
+        assertEquals("3 h ago", formatter.getFormattedTimeText(created, created + 3 * HOUR))
+        assertEquals("yesterday", formatter.getFormattedTimeText(created, created + 20 * HOUR))
+        assertEquals("Nov. 11", formatter.getFormattedTimeText(created, created + 40 * HOUR))
+    }
+
+    @Test
+    fun getNextChangeTime() {
+        val created = createCalendar(2017, 10, 11, 10, 0).timeInMillis
+
+        assertEquals(created + MINUTE, formatter.getNextChangeTime(created, created))
+        assertEquals(created + 6 * MINUTE, formatter.getNextChangeTime(created, created + 5 * MINUTE + SECOND))
+        assertEquals(created + 4 * HOUR, formatter.getNextChangeTime(created, created + 3 * HOUR))
+        // "13 h ago" changes to "yesterday" at midnight
+        val midnight = createCalendar(2017, 10, 12, 0, 0).timeInMillis
+        assertEquals(midnight, formatter.getNextChangeTime(created, created + 13 * HOUR + MINUTE))
+        assertEquals(createCalendar(2017, 10, 13, 0, 0).timeInMillis, formatter.getNextChangeTime(created, midnight))
+        assertEquals(Long.MAX_VALUE, formatter.getNextChangeTime(created, created + 40 * HOUR))
+    }
+
+    @Test
+    fun textChangesOnlyAtNextChangeTime() {
+        val created = createCalendar(2017, 10, 11, 23, 30).timeInMillis
+        var now = created
+        while (true) {
+            val next = formatter.getNextChangeTime(created, now)
+            if (next == Long.MAX_VALUE) {
+                break
+            }
+            val text = formatter.getFormattedTimeText(created, now)
+            assertEquals(text, formatter.getFormattedTimeText(created, next - 1))
+            now = next
+        }
+    }
+
+    private fun createCalendar(year: Int, month: Int, day: Int, hour: Int, minute: Int): Calendar {
+        val calendar = Calendar.getInstance()
+        calendar.set(year, month, day, hour, minute, 0)
+        calendar.set(Calendar.MILLISECOND, 0)
+        return calendar
+    }
+
+    companion object {
+        private const val SECOND = 1000L
+        private const val MINUTE = 60 * SECOND
+        private const val HOUR = 60 * MINUTE
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.bassaer.chatmessageview.util
+
+import org.openjdk.jmh.annotations.*
+import java.text.SimpleDateFormat
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares formatting with a new SimpleDateFormat for each call and with the cached formats.
+ * Run by TimeUtilsBenchmarkTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+open class TimeUtilsBenchmark {
+
+    private val times = LongArray(COUNT) { BASE_TIME + it * 37 * 60 * 1000L }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    fun formatWithNewInstance(): Int {
+        var length = 0
+        for (time in times) {
+            length += SimpleDateFormat("HH:mm").format(Date(time)).length
+        }
+        return length
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    fun formatWithCache(): Int {
+        var length = 0
+        for (time in times) {
+            length += TimeUtils.millisToString(time, "HH:mm").length
+        }
+        return length
+    }
+
+    companion object {
+        private const val COUNT = 10000
+        private const val BASE_TIME = 1510400000000L
+    }
+}
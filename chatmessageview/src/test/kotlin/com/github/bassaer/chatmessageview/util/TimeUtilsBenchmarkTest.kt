@@ -0,0 +1,27 @@
+package com.github.bassaer.chatmessageview.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Runs TimeUtilsBenchmark with JMH.
+ * It is skipped unless the benchmark system property is set:
+ * ./gradlew test -Dbenchmark=true
+ */
+internal class TimeUtilsBenchmarkTest {
+
+    @Before
+    fun setUp() {
+        assumeTrue(System.getProperty("benchmark") != null)
+    }
+
+    @Test
+    fun compareCachedFormat() {
+        val benchmark = TimeUtilsBenchmark()
+        assertEquals(benchmark.formatWithNewInstance(), benchmark.formatWithCache())
+
+        assertEquals(2, BenchmarkRunner.run(TimeUtilsBenchmark::class.java).size)
+    }
+}
@@ -1,6 +1,7 @@
 package com.github.bassaer.chatmessageview.util
 
 
+import com.github.bassaer.chatmessageview.model.Message
 import junit.framework.Assert.assertEquals
 import org.junit.Test
 import java.util.*
@@ -44,4 +45,73 @@ internal class TimeUtilsTest {
         assertEquals(TimeUtils.isSameDay(firstDay, secondDay), false)
     }
 
-}
\ No newline at end of file
+    @Test
+    fun isSameDayMillis() {
+        val firstDay = Calendar.getInstance()
+        val secondDay = Calendar.getInstance()
+        firstDay.set(2017, 10, 11, 0, 0, 0)
+        secondDay.set(2017, 10, 11, 23, 59, 59)
+        assertEquals(TimeUtils.isSameDay(firstDay.timeInMillis, secondDay.timeInMillis), true)
+        secondDay.set(2017, 10, 12, 0, 0, 0)
+        assertEquals(TimeUtils.isSameDay(firstDay.timeInMillis, secondDay.timeInMillis), false)
+        assertEquals(TimeUtils.getEpochDay(secondDay.timeInMillis) - TimeUtils.getEpochDay(firstDay.timeInMillis), 1L)
+    }
+
+    @Test
+    fun millisToString() {
+        val calendar = Calendar.getInstance()
+        calendar.set(2017, 10, 11, 22, 33)
+        assertEquals(TimeUtils.millisToString(calendar.timeInMillis, null), "22:33")
+        assertEquals(TimeUtils.millisToString(calendar.timeInMillis, "MMM. dd, yyyy"), "Nov. 11, 2017")
+    }
+
+    @Test
+    fun formatAfterTimeZoneChanged() {
+        val defaultTimeZone = TimeZone.getDefault()
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("UTC"))
+            assertEquals(TimeUtils.millisToString(0, null), "00:00")
+            TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"))
+            assertEquals(TimeUtils.millisToString(0, null), "09:00")
+        } finally {
+            TimeZone.setDefault(defaultTimeZone)
+        }
+    }
+
+    @Test
+    fun epochDayAfterTimeZoneChanged() {
+        val defaultTimeZone = TimeZone.getDefault()
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("UTC"))
+            TimeUtils.checkDefaultsChanged()
+            val message = Message.Builder().setCreatedAt(0L).build()
+            assertEquals(message.epochDay, 0L)
+
+            TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"))
+            TimeUtils.checkDefaultsChanged()
+            assertEquals(message.epochDay, -1L)
+            assertEquals(message.epochDay, TimeUtils.getEpochDay(0L))
+        } finally {
+            TimeZone.setDefault(defaultTimeZone)
+            TimeUtils.checkDefaultsChanged()
+        }
+    }
+
+    @Test
+    fun formatOnOtherThreads() {
+        val calendar = Calendar.getInstance()
+        calendar.set(2017, 10, 11, 22, 33)
+        val results = Collections.synchronizedList(ArrayList<String>())
+        val threads = (0 until 4).map {
+            Thread {
+                for (i in 0 until 100) {
+                    results.add(TimeUtils.millisToString(calendar.timeInMillis, "MMM. dd, yyyy HH:mm"))
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        assertEquals(results.size, 400)
+        assertEquals(results.toSet(), setOf("Nov. 11, 2017 22:33"))
+    }
+}
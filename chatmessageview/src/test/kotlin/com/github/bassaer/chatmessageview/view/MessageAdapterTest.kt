@@ -3,14 +3,20 @@ package com.github.bassaer.chatmessageview.view
 
 import android.content.Context
 import android.graphics.BitmapFactory
+import android.view.LayoutInflater
 import android.view.View
+import android.view.ViewGroup
+import android.widget.FrameLayout
 import android.widget.TextView
 import com.github.bassaer.chatmessageview.BuildConfig
 import com.github.bassaer.chatmessageview.R
 import com.github.bassaer.chatmessageview.model.ChatUser
+import com.github.bassaer.chatmessageview.model.DateSeparator
 import com.github.bassaer.chatmessageview.model.Message
 import com.github.bassaer.chatmessageview.models.Attribute
 import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import org.junit.Assert.assertNotEquals
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
@@ -48,7 +54,7 @@ internal class MessageAdapterTest {
                 .setUser(receiver)
                 .build()
 
-        messageList.add(message1.dateSeparateText)
+        messageList.add(DateSeparator(message1.epochDay, message1))
         messageList.add(message1)
         messageList.add(message2)
 
@@ -66,7 +72,7 @@ internal class MessageAdapterTest {
 
         // Date label
         val dateLabel = messageArray[0]?.findViewById<TextView>(R.id.dateLabelText)
-        var expectingText: String? = messageList[0] as String
+        var expectingText: String? = (messageList[0] as DateSeparator).text
         assertEquals(expectingText, dateLabel?.text)
 
         // Check Messages
@@ -77,4 +83,53 @@ internal class MessageAdapterTest {
         }
     }
 
+    @Test
+    fun customRenderer() {
+        val message = Message.Builder()
+                .setRightMessage(false)
+                .setMessageText("card")
+                .setUser(ChatUser(1, "User2", BitmapFactory.decodeResource(context.resources, R.drawable.ic_action_user)))
+                .setCustomType("card")
+                .build()
+        messageList.add(message)
+        messageAdapter.registerRenderer("card", object : MessageRenderer {
+            override fun createContentView(inflater: LayoutInflater, container: ViewGroup, isRightMessage: Boolean): View {
+                return TextView(container.context)
+            }
+
+            override fun bindContentView(contentView: View, message: Message) {
+                (contentView as TextView).text = "[" + message.messageText + "]"
+            }
+        })
+
+        val position = messageList.size - 1
+        val view = messageAdapter.getView(position, null, null)
+        val container = view.findViewById<FrameLayout>(R.id.mainMessageContainer)
+        assertEquals("[card]", (container.getChildAt(0) as TextView).text.toString())
+        assertNotEquals(messageAdapter.getItemViewType(position - 1), messageAdapter.getItemViewType(position))
+        assertTrue(messageAdapter.getItemViewType(position) < messageAdapter.viewTypeCount)
+    }
+
+    @Test
+    fun precomputeInsertOfIntermediateList() {
+        val attribute = Attribute(context, null)
+        attribute.isFlatBubbleEnabled = true
+        val adapter = MessageAdapter(context, 0, messageList, attribute)
+
+        // DiffUtil may report an insert after the end of the new list
+        adapter.precomputeText(messageList.size, 2)
+        adapter.precomputeText(1, messageList.size)
+    }
+
+    @Test
+    fun stableIdsWithoutTimeline() {
+        messageList.add("Jan. 01, 1970")
+        val ids = messageList.indices.map { messageAdapter.getItemId(it) }
+
+        assertTrue(messageAdapter.hasStableIds())
+        assertEquals(ids.size, ids.toSet().size)
+        assertTrue(ids[1] > 0 && ids[2] > 0)
+        assertEquals(ids, messageList.indices.map { messageAdapter.getItemId(it) })
+    }
+
 }
\ No newline at end of file
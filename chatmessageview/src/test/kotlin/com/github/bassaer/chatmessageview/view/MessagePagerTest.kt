@@ -0,0 +1,113 @@
+package com.github.bassaer.chatmessageview.view
+
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.model.MessageTimeline
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * MessagePager Unit Test
+ */
+internal class MessagePagerTest {
+    private lateinit var history: List<Message>
+    private lateinit var timeline: MessageTimeline
+    private lateinit var pager: MessagePager
+    private var newestPageCount = 0
+
+    @Before
+    fun setUp() {
+        history = (0 until 30).map { Message.Builder().setCreatedAt(BASE_TIME + it * 60000L).build() }
+        timeline = MessageTimeline()
+        pager = MessagePager(timeline, ListSource(history), 10, 2, 20, { it() }) { newestPageCount++ }
+    }
+
+    @Test
+    fun dropNewestWhileLoadingOlder() {
+        pager.loadOlder()
+        assertEquals(history.subList(20, 30), timeline.messageList)
+        pager.onVisibleRangeChanged(0, 5)
+        pager.onVisibleRangeChanged(0, 5)
+
+        assertEquals(history.subList(0, 20), timeline.messageList)
+        assertEquals(1, newestPageCount)
+    }
+
+    @Test
+    fun addNewMessageAfterNewestPage() {
+        pager.loadOlder()
+        assertEquals(false, pager.holdNewMessage(Message.Builder().build()))
+        pager.onVisibleRangeChanged(0, 5)
+        pager.onVisibleRangeChanged(0, 5)
+
+        // The message is not stored in the source
+        val message = Message.Builder().setCreatedAt(BASE_TIME + 60 * 60000L).build()
+        assertEquals(true, pager.holdNewMessage(message))
+        // The shown messages are kept while the user reads them
+        assertEquals(history.subList(0, 20), timeline.messageList)
+
+        val last = timeline.chatList.size - 1
+        pager.onVisibleRangeChanged(last - 5, last)
+        assertEquals(history.subList(10, 30), timeline.messageList)
+        pager.onVisibleRangeChanged(last - 5, last)
+        assertEquals(history.subList(10, 30) + message, timeline.messageList)
+        assertEquals(1, newestPageCount)
+    }
+
+    @Test
+    fun releaseHeldMessageReturnedBySource() {
+        pager.loadOlder()
+        pager.onVisibleRangeChanged(0, 5)
+        pager.onVisibleRangeChanged(0, 5)
+        assertEquals(true, pager.holdNewMessage(history[25]))
+
+        val last = timeline.chatList.size - 1
+        pager.onVisibleRangeChanged(last - 5, last)
+        pager.onVisibleRangeChanged(last - 5, last)
+        assertEquals(history.subList(10, 30), timeline.messageList)
+    }
+
+    @Test
+    fun applyPageAfterPendingChanges() {
+        pager = MessagePager(timeline, ListSource(history), 10, 2, 20, { change ->
+            timeline.endUpdate()
+            change()
+        }) { newestPageCount++ }
+        pager.loadOlder()
+        pager.onVisibleRangeChanged(0, 5)
+        timeline.beginUpdate()
+        timeline.add(Message.Builder().setCreatedAt(BASE_TIME + 60 * 60000L).build())
+        pager.onVisibleRangeChanged(0, 5)
+
+        // The pending message is added first, so it is dropped with the newest page
+        assertEquals(false, timeline.isInUpdate)
+        assertEquals(history.subList(0, 20), timeline.messageList)
+    }
+
+    @Test
+    fun resetForgetsHeldMessages() {
+        pager.loadOlder()
+        pager.onVisibleRangeChanged(0, 5)
+        pager.onVisibleRangeChanged(0, 5)
+        assertEquals(true, pager.holdNewMessage(Message.Builder().build()))
+
+        pager.reset()
+        assertEquals(false, pager.holdNewMessage(Message.Builder().build()))
+    }
+
+    private class ListSource(private val messages: List<Message>) : MessagePageSource {
+        override fun loadOlder(oldest: Message?, pageSize: Int, callback: MessagePageSource.Callback) {
+            val end = if (oldest == null) messages.size else messages.indexOf(oldest)
+            callback.onPageLoaded(messages.subList(Math.max(end - pageSize, 0), end))
+        }
+
+        override fun loadNewer(newest: Message, pageSize: Int, callback: MessagePageSource.Callback) {
+            val start = messages.indexOf(newest) + 1
+            callback.onPageLoaded(messages.subList(start, Math.min(start + pageSize, messages.size)))
+        }
+    }
+
+    companion object {
+        private const val BASE_TIME = 1510000000000L
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.bassaer.chatmessageview.view
+
+import android.app.Activity
+import android.graphics.BitmapFactory
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import android.widget.FrameLayout
+import android.widget.TextView
+import com.github.bassaer.chatmessageview.BuildConfig
+import com.github.bassaer.chatmessageview.R
+import com.github.bassaer.chatmessageview.model.ChatUser
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.util.ChatExecutor
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLooper
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * MessageView Unit Test
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+internal class MessageViewTest {
+    private lateinit var messageView: MessageView
+
+    @Before
+    fun setUp() {
+        messageView = MessageView(RuntimeEnvironment.application, Robolectric.buildAttributeSet().build())
+    }
+
+    @Test
+    fun keepMessageSetWhileLoading() {
+        val loaded = (0 until 3).map { Message.Builder().setCreatedAt(BASE_TIME + it * 60000L).build() }
+        messageView.initAsync(loaded)
+        val sent = Message.Builder().setCreatedAt(BASE_TIME + 600000L).build()
+        messageView.setMessage(sent)
+
+        waitForLoad()
+        assertEquals(loaded + sent, messageView.messageList)
+    }
+
+    @Test
+    fun ignoreLoadAfterInit() {
+        messageView.initAsync(listOf(Message.Builder().setCreatedAt(BASE_TIME).build()))
+        val messages = listOf(Message.Builder().setCreatedAt(BASE_TIME + 60000L).build())
+        messageView.init(messages)
+
+        waitForLoad()
+        assertEquals(messages, messageView.messageList)
+    }
+
+    @Test
+    fun readMessageSetWhileDetached() {
+        val message = Message.Builder().setCreatedAt(BASE_TIME).build()
+        messageView.setMessage(message)
+
+        assertEquals(listOf(message), messageView.messageList)
+    }
+
+    @Test
+    fun readMessageSetBeforeNextFrame() {
+        Robolectric.setupActivity(Activity::class.java).setContentView(messageView)
+        val message = Message.Builder().setCreatedAt(BASE_TIME).build()
+        messageView.setMessage(message)
+
+        assertEquals(listOf(message), messageView.messageList)
+    }
+
+    @Test
+    fun keepRendererAfterInit() {
+        messageView.registerRenderer("card", object : MessageRenderer {
+            override fun createContentView(inflater: LayoutInflater, container: ViewGroup, isRightMessage: Boolean): View {
+                return TextView(container.context)
+            }
+
+            override fun bindContentView(contentView: View, message: Message) {
+                (contentView as TextView).text = "[" + message.messageText + "]"
+            }
+        })
+        val icon = BitmapFactory.decodeResource(RuntimeEnvironment.application.resources, R.drawable.ic_action_user)
+        val message = Message.Builder()
+                .setUser(ChatUser(1, "User", icon))
+                .setMessageText("card")
+                .setCustomType("card")
+                .setCreatedAt(BASE_TIME)
+                .build()
+        messageView.init(listOf(message))
+
+        val view = messageView.adapter.getView(1, null, messageView)
+        val container = view.findViewById<FrameLayout>(R.id.mainMessageContainer)
+        assertEquals("[card]", (container.getChildAt(0) as TextView).text.toString())
+    }
+
+    /**
+     * Wait until the background thread prepares the rows, and publish them on the main thread
+     */
+    private fun waitForLoad() {
+        val latch = CountDownLatch(1)
+        ChatExecutor.execute { latch.countDown() }
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        ShadowLooper.idleMainLooper()
+    }
+
+    companion object {
+        private const val BASE_TIME = 1500000000000L
+    }
+}
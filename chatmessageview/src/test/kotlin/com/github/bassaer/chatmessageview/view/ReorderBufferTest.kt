@@ -0,0 +1,68 @@
+package com.github.bassaer.chatmessageview.view
+
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.model.MessageTimeline
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.*
+
+/**
+ * ReorderBuffer Unit Test
+ */
+internal class ReorderBufferTest {
+
+    @Test
+    fun showHeldMessagesInOrder() {
+        val timeline = MessageTimeline()
+        val buffer = ReorderBuffer(timeline)
+        val shown = createMessage(10)
+        timeline.add(shown)
+
+        val newer = createMessage(30)
+        val late = createMessage(20)
+        assertEquals(true, buffer.hold(newer, 0))
+        assertEquals(false, buffer.hold(late, 0))
+        assertEquals(listOf(shown), timeline.messageList)
+
+        buffer.flushAll()
+        assertEquals(listOf(shown, late, newer), timeline.messageList)
+        assertTrue(buffer.isEmpty)
+    }
+
+    @Test
+    fun holdEachMessageForWholeWindow() {
+        val timeline = MessageTimeline()
+        val buffer = ReorderBuffer(timeline)
+        buffer.windowMillis = 100
+        val first = createMessage(10)
+        val second = createMessage(20)
+        buffer.hold(first, 1000)
+        buffer.hold(second, 1050)
+
+        assertEquals(1150L, buffer.flush(1100))
+        assertEquals(listOf(first), timeline.messageList)
+        assertEquals(0L, buffer.flush(1150))
+        assertEquals(listOf(first, second), timeline.messageList)
+        assertTrue(buffer.isEmpty)
+    }
+
+    @Test
+    fun removeHeldMessage() {
+        val timeline = MessageTimeline()
+        val buffer = ReorderBuffer(timeline)
+        val message = createMessage(10)
+        buffer.hold(message, 0)
+
+        assertEquals(true, buffer.remove(message))
+        assertEquals(false, buffer.remove(message))
+        buffer.flushAll()
+        assertEquals(listOf<Message>(), timeline.messageList)
+    }
+
+    private fun createMessage(second: Int): Message {
+        val calendar = Calendar.getInstance()
+        calendar.set(2017, 10, 11, 10, 0, second)
+        return Message.Builder().setCreatedAt(calendar).build()
+    }
+}
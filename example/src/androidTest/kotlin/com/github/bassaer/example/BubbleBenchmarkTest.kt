@@ -0,0 +1,102 @@
+package com.github.bassaer.example
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.support.test.InstrumentationRegistry
+import android.support.test.runner.AndroidJUnit4
+import android.util.Log
+import android.view.View
+import android.widget.FrameLayout
+import com.github.bassaer.chatmessageview.model.ChatUser
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.models.Attribute
+import com.github.bassaer.chatmessageview.view.MessageAdapter
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.*
+
+/**
+ * Compares bind, measure, layout and draw time of the text message rows
+ * between the layout files and the flat bubble view.
+ * The result is written to logcat with BubbleBenchmark tag.
+ */
+@RunWith(AndroidJUnit4::class)
+class BubbleBenchmarkTest {
+
+    @Test
+    fun compareFlatBubble() {
+        val context = InstrumentationRegistry.getTargetContext()
+        val icon = BitmapFactory.decodeResource(context.resources, R.drawable.face_1)
+        val messages = createMessages(icon)
+
+        var layoutTime = 0L
+        var flatTime = 0L
+        InstrumentationRegistry.getInstrumentation().runOnMainSync {
+            // Warm up both of them before measuring
+            run(messages, false)
+            run(messages, true)
+            layoutTime = run(messages, false)
+            flatTime = run(messages, true)
+        }
+        Log.i(TAG, "layout: ${layoutTime / ROUNDS / 1000} us/round, flat: ${flatTime / ROUNDS / 1000} us/round")
+        assertTrue(layoutTime > 0 && flatTime > 0)
+    }
+
+    /**
+     * Bind every message to a recycled row, then measure, lay out and draw it
+     * @return elapsed time in nanoseconds
+     */
+    private fun run(messages: List<Message>, isFlat: Boolean): Long {
+        val context = InstrumentationRegistry.getTargetContext()
+        val attribute = Attribute(context, null)
+        attribute.isFlatBubbleEnabled = isFlat
+        val adapter = MessageAdapter(context, 0, messages, attribute)
+        val parent = FrameLayout(context)
+        val width = context.resources.displayMetrics.widthPixels
+        val bitmap = Bitmap.createBitmap(width, context.resources.displayMetrics.heightPixels, Bitmap.Config.ARGB_8888)
+        val canvas = Canvas(bitmap)
+        val rows = arrayOfNulls<View>(adapter.viewTypeCount)
+
+        val start = System.nanoTime()
+        for (round in 0 until ROUNDS) {
+            for (position in messages.indices) {
+                val viewType = adapter.getItemViewType(position)
+                val row = adapter.getView(position, rows[viewType], parent)
+                rows[viewType] = row
+                row.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED))
+                row.layout(0, 0, row.measuredWidth, row.measuredHeight)
+                row.draw(canvas)
+            }
+        }
+        val elapsed = System.nanoTime() - start
+        bitmap.recycle()
+        return elapsed
+    }
+
+    private fun createMessages(icon: Bitmap): List<Message> {
+        val me = ChatUser(0, "Me", icon)
+        val you = ChatUser(1, "You", icon)
+        val messages = ArrayList<Message>()
+        for (i in 0 until MESSAGE_COUNT) {
+            val text = StringBuilder("Message $i")
+            for (j in 0 until i % 8) {
+                text.append(" some longer text to wrap the bubble")
+            }
+            messages.add(Message.Builder()
+                    .setUser(if (i % 3 == 0) me else you)
+                    .setRightMessage(i % 3 == 0)
+                    .setMessageText(text.toString())
+                    .build())
+        }
+        return messages
+    }
+
+    companion object {
+        private const val TAG = "BubbleBenchmark"
+        private const val ROUNDS = 20
+        private const val MESSAGE_COUNT = 50
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.bassaer.example
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.os.Bundle
+import android.support.test.InstrumentationRegistry
+import android.support.test.runner.AndroidJUnit4
+import android.util.Log
+import com.github.bassaer.chatmessageview.model.ChatUser
+import com.github.bassaer.chatmessageview.model.Message
+import com.github.bassaer.chatmessageview.util.*
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.*
+
+/**
+ * Measures the heap retained by text and picture messages, and by BaselineMessage
+ * which has the fields of Message before its flags were packed.
+ * User, text and picture are shared, so only the message itself is counted.
+ * The heap size changes with the garbage collector of the device, so the sizes are reported
+ * to the instrumentation results and logcat with MessageFootprint tag instead of compared.
+ */
+@RunWith(AndroidJUnit4::class)
+class MessageFootprintBenchmarkTest {
+
+    @Test
+    fun measureRetainedSize() {
+        val context = InstrumentationRegistry.getTargetContext()
+        val icon = BitmapFactory.decodeResource(context.resources, R.drawable.face_1)
+        val user = ChatUser(0, "Me", icon)
+        val createdAt = System.currentTimeMillis()
+
+        val textSize = measure {
+            Message.Builder()
+                    .setUser(user)
+                    .setMessageText(TEXT)
+                    .setCreatedAt(createdAt + it)
+                    .build()
+        }
+        val pictureSize = measure {
+            Message.Builder()
+                    .setUser(user)
+                    .setType(Message.Type.PICTURE)
+                    .setPicture(icon)
+                    .setCreatedAt(createdAt + it)
+                    .build()
+        }
+        val baselineTextSize = measure {
+            val message = BaselineMessage()
+            message.user = user
+            message.messageText = TEXT
+            message.createdAtMillis = createdAt + it
+            message
+        }
+        val baselinePictureSize = measure {
+            val message = BaselineMessage()
+            message.user = user
+            message.picture = icon
+            message.createdAtMillis = createdAt + it
+            message
+        }
+        val results = Bundle()
+        results.putLong("text_bytes", textSize)
+        results.putLong("baseline_text_bytes", baselineTextSize)
+        results.putLong("picture_bytes", pictureSize)
+        results.putLong("baseline_picture_bytes", baselinePictureSize)
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results)
+        Log.i(TAG, "text: $textSize bytes/message (baseline $baselineTextSize), " +
+                "picture: $pictureSize bytes/message (baseline $baselinePictureSize)")
+    }
+
+    /**
+     * @return heap grown by each message in bytes
+     */
+    private fun measure(create: (Int) -> Any): Long {
+        // Warm up classes and shared objects before measuring
+        create(0)
+        // Reference array of the list is not a part of the message, so it is allocated before
+        val messages = ArrayList<Any>(MESSAGE_COUNT)
+        val before = usedMemory()
+        for (i in 0 until MESSAGE_COUNT) {
+            messages.add(create(i))
+        }
+        val after = usedMemory()
+        // Keep the messages alive until they are measured
+        assertTrue(messages.size == MESSAGE_COUNT)
+        return (after - before) / MESSAGE_COUNT
+    }
+
+    private fun usedMemory(): Long {
+        val runtime = Runtime.getRuntime()
+        for (i in 0 until 3) {
+            runtime.gc()
+            System.runFinalization()
+        }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    /**
+     * Same fields as Message had before the boolean fields were packed into one int
+     * and the default formatters were shared
+     */
+    @Suppress("unused")
+    private class BaselineMessage {
+        var user: ChatUser? = null
+        var usernameVisibility = true
+        var iconVisibility = true
+        var isIconHided = false
+        var isSameSenderAsPrevious = false
+        var isRightMessage = false
+        var messageText: String? = null
+        var createdAtMillis = 0L
+        var calendar: Calendar? = null
+        var isDateCell = false
+        var sendTimeFormatter: ITimeFormatter? = DefaultTimeFormatter()
+        var dateFormatter: ITimeFormatter? = DateFormatter()
+        var status = 0
+        var messageStatusType = 0
+        var statusIconFormatter: IMessageStatusIconFormatter? = null
+        var statusTextFormatter: IMessageStatusTextFormatter? = null
+        var picture: Bitmap? = null
+        var type: Message.Type? = Message.Type.TEXT
+        var customType: String? = null
+        var cachedTimeText: String? = null
+        var timeTextExpiresAt = 0L
+        var cachedDateText: String? = null
+        var labelGeneration = -1
+        var epochDayMillis = Long.MIN_VALUE
+        var cachedEpochDay = 0L
+
+        init {
+            // The old constructor created the send time formatter twice
+            sendTimeFormatter = DefaultTimeFormatter()
+        }
+    }
+
+    companion object {
+        private const val TAG = "MessageFootprint"
+        private const val MESSAGE_COUNT = 20000
+        private const val TEXT = "Hello"
+    }
+}